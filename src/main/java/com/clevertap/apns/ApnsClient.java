@@ -30,6 +30,7 @@
 
 package com.clevertap.apns;
 
+import com.clevertap.apns.enums.FailureReason;
 import okhttp3.OkHttpClient;
 
 /**
@@ -55,6 +56,32 @@ public interface ApnsClient {
      */
     void push(Notification notification, NotificationResponseListener listener);
 
+    /**
+     * Sends a notification asynchronously to the Apple Push Notification Service, reporting
+     * its outcome as primitives. By default, the outcome is adapted from
+     * {@link #push(Notification, NotificationResponseListener)}; clients that send requests
+     * themselves report it without allocating anything for successful notifications.
+     *
+     * @param notification  The notification built using
+     *                      {@link Notification.Builder}
+     * @param correlationId An ID to pass to the listener along with the outcome
+     * @param listener      The listener to be called after the request is complete
+     */
+    default void push(Notification notification, long correlationId, NotificationStatusListener listener) {
+        push(notification, new NotificationResponseListener() {
+            @Override
+            public void onSuccess(Notification notification) {
+                listener.onStatus(correlationId, 200, NotificationStatusListener.NO_REASON);
+            }
+
+            @Override
+            public void onFailure(Notification notification, NotificationResponse response) {
+                listener.onStatus(correlationId, response.getHttpStatusCode(),
+                        FailureReason.parse(response.getResponseBody()).ordinal());
+            }
+        });
+    }
+
     /**
      * Sends a notification synchronously to the Apple Push Notification Service.
      *
@@ -0,0 +1,181 @@
+/*
+ * Copyright (c) 2016, CleverTap
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * - Neither the name of CleverTap nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.clevertap.apns;
+
+import java.util.Arrays;
+
+/**
+ * A device token, held as raw bytes rather than as a hex string.
+ * <p>
+ * Parsing validates the token locally, so that a malformed token is rejected before it
+ * costs a round trip to APNs (which would answer with BadDeviceToken). The hex form used
+ * in the request path is rendered the first time it's needed, and cached from then on.
+ */
+public final class DeviceToken {
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final byte[] bytes;
+    private String hex;
+
+    private DeviceToken(byte[] bytes) {
+        this.bytes = bytes;
+    }
+
+    /**
+     * Checks whether a string is a well-formed device token: a non-empty, even number
+     * of hex digits (in either case).
+     *
+     * @param hex The string to check
+     * @return Whether the string can be parsed by {@link #parse(CharSequence)}
+     */
+    public static boolean isValid(CharSequence hex) {
+        final int length = hex.length();
+        if (length == 0 || (length & 1) != 0) {
+            return false;
+        }
+
+        // Each range check is negative when the char is outside that range; a char is
+        // invalid when all three are negative. Accumulating the sign bits avoids branching
+        // on each char.
+        int invalid = 0;
+        for (int i = 0; i < length; i++) {
+            final int c = hex.charAt(i);
+            invalid |= ((c - '0') | ('9' - c))
+                    & ((c - 'a') | ('f' - c))
+                    & ((c - 'A') | ('F' - c));
+        }
+        return invalid >= 0;
+    }
+
+    /**
+     * Parses a device token from its hex form.
+     *
+     * @param hex The token, as hex digits (in either case)
+     * @return The device token
+     * @throws IllegalArgumentException if the token isn't a non-empty, even number of hex digits
+     */
+    public static DeviceToken parse(CharSequence hex) {
+        if (!isValid(hex)) {
+            throw new IllegalArgumentException("Malformed device token: " + hex);
+        }
+
+        final byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) (nibble(hex.charAt(2 * i)) << 4 | nibble(hex.charAt(2 * i + 1)));
+        }
+        return new DeviceToken(bytes);
+    }
+
+    /**
+     * Creates a device token from its raw bytes.
+     *
+     * @param bytes The token (copied)
+     * @return The device token
+     * @throws IllegalArgumentException if the token is empty
+     */
+    public static DeviceToken of(byte[] bytes) {
+        if (bytes.length == 0) {
+            throw new IllegalArgumentException("Empty device token");
+        }
+        return new DeviceToken(bytes.clone());
+    }
+
+    /**
+     * Wraps raw bytes without copying them.
+     */
+    static DeviceToken wrap(byte[] bytes) {
+        return new DeviceToken(bytes);
+    }
+
+    /**
+     * Maps a hex digit (already validated) to its value, without branching:
+     * the low four bits of '0'-'9' are the value, while those of 'a'-'f' and 'A'-'F'
+     * are one to six, and bit 6 is only set for letters.
+     */
+    private static int nibble(char c) {
+        return (c & 0xF) + 9 * (c >> 6);
+    }
+
+    /**
+     * Returns the length of the token.
+     *
+     * @return The number of bytes in the token
+     */
+    public int length() {
+        return bytes.length;
+    }
+
+    /**
+     * Returns the raw bytes of the token.
+     *
+     * @return A copy of the token's bytes
+     */
+    public byte[] toBytes() {
+        return bytes.clone();
+    }
+
+    /**
+     * Returns the raw bytes of the token, without copying them.
+     */
+    byte[] bytes() {
+        return bytes;
+    }
+
+    /**
+     * Returns the lowercase hex form of the token, as used in the request path.
+     *
+     * @return The hex form of the token
+     */
+    @Override
+    public String toString() {
+        // Racy single-check: at worst, concurrent callers each render an equal string
+        String hex = this.hex;
+        if (hex == null) {
+            final char[] chars = new char[bytes.length * 2];
+            for (int i = 0; i < bytes.length; i++) {
+                chars[2 * i] = HEX[(bytes[i] >> 4) & 0xF];
+                chars[2 * i + 1] = HEX[bytes[i] & 0xF];
+            }
+            this.hex = hex = new String(chars);
+        }
+        return hex;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return this == o || (o instanceof DeviceToken && Arrays.equals(bytes, ((DeviceToken) o).bytes));
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(bytes);
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright (c) 2016, CleverTap
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * - Neither the name of CleverTap nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.clevertap.apns;
+
+import com.clevertap.apns.enums.FailureReason;
+
+/**
+ * A device token which APNs reported as no longer valid, and which should no longer
+ * be sent notifications.
+ */
+public class InvalidToken {
+    private final String token;
+    private final String topic;
+    private final long timestamp;
+    private final FailureReason reason;
+
+    /**
+     * Creates a new invalid token.
+     *
+     * @param token     The device token
+     * @param topic     The topic of the notification that was rejected
+     * @param timestamp The time at which APNs last knew the token was valid, or -1
+     * @param reason    The reason APNs gave
+     */
+    public InvalidToken(String token, String topic, long timestamp, FailureReason reason) {
+        this.token = token;
+        this.topic = topic;
+        this.timestamp = timestamp;
+        this.reason = reason;
+    }
+
+    public String getToken() {
+        return token;
+    }
+
+    /**
+     * Returns the topic of the notification that was rejected.
+     *
+     * @return The topic (null if the notification was sent to the client's default topic)
+     */
+    public String getTopic() {
+        return topic;
+    }
+
+    /**
+     * Returns the time at which APNs last confirmed that the token was valid for the topic.
+     * Tokens registered after this time shouldn't be removed.
+     *
+     * @return A UNIX epoch date expressed in milliseconds, or -1 if APNs didn't give one
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public FailureReason getReason() {
+        return reason;
+    }
+
+    @Override
+    public String toString() {
+        return "InvalidToken{" +
+                "token='" + token + '\'' +
+                ", topic='" + topic + '\'' +
+                ", timestamp=" + timestamp +
+                ", reason=" + reason +
+                '}';
+    }
+}
@@ -32,10 +32,13 @@ package com.clevertap.apns;
 
 import com.clevertap.apns.clients.AsyncOkHttpApnsClient;
 import com.clevertap.apns.enums.InterruptionLevel;
+import com.clevertap.apns.internal.Constants;
+import com.clevertap.apns.internal.Utf8;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
 
-import java.io.UnsupportedEncodingException;
 import java.util.HashMap;
 import java.util.UUID;
 
@@ -47,12 +50,29 @@ import java.util.UUID;
 public class Notification {
     private final String payload;
     private final String token;
+    private final DeviceToken deviceToken;
     private final String topic;
     private final String collapseId;
     private final long expiration;
     private final Priority priority;
     private final String pushType;
     private final UUID uuid;
+    private final long deadline;
+    private int payloadSize;
+    private volatile byte[] payloadBytes;
+    private volatile RequestBody requestBody;
+
+    private static final MediaType JSON = MediaType.parse("application/json");
+
+    /**
+     * The largest payload APNs accepts, in bytes.
+     */
+    public static final int MAX_PAYLOAD_SIZE = 4096;
+
+    /**
+     * The largest payload APNs accepts for VoIP notifications, in bytes.
+     */
+    public static final int MAX_VOIP_PAYLOAD_SIZE = 5120;
 
     public enum Priority {
         IMMEDIATE(10),
@@ -84,14 +104,54 @@ public class Notification {
      */
     protected Notification(String payload, String token, String topic, String collapseId,
         long expiration, Priority priority, UUID uuid, String pushType) {
+        this(payload, token, null, topic, collapseId, expiration, priority, uuid, pushType, -1);
+    }
+
+    /**
+     * Constructs a new Notification with a payload and a parsed device token.
+     *
+     * @param payload    The JSON body (which is used for the request)
+     * @param token      The device token
+     * @param topic      The topic for this notification
+     * @param collapseId The collapse ID
+     * @param expiration A UNIX epoch date expressed in seconds (UTC)
+     * @param priority   The priority of the notification (10 or 5)
+     * @param uuid       A canonical UUID that identifies the notification
+     * @param pushType   Type of push to be sent (background/alert etc)
+     */
+    protected Notification(String payload, DeviceToken token, String topic, String collapseId,
+        long expiration, Priority priority, UUID uuid, String pushType) {
+        this(payload, null, token, topic, collapseId, expiration, priority, uuid, pushType, -1);
+    }
+
+    /**
+     * Constructs a new Notification, with either a token string or a parsed device token.
+     *
+     * @param payload     The JSON body (which is used for the request)
+     * @param token       The device token string, or null
+     * @param deviceToken The parsed device token, or null
+     * @param topic       The topic for this notification
+     * @param collapseId  The collapse ID
+     * @param expiration  A UNIX epoch date expressed in seconds (UTC)
+     * @param priority    The priority of the notification (10 or 5)
+     * @param uuid        A canonical UUID that identifies the notification
+     * @param pushType    Type of push to be sent (background/alert etc)
+     * @param deadline    A UNIX epoch date expressed in milliseconds, after which the
+     *                    notification isn't worth sending (-1 for none)
+     */
+    protected Notification(String payload, String token, DeviceToken deviceToken, String topic,
+        String collapseId, long expiration, Priority priority, UUID uuid, String pushType,
+        long deadline) {
         this.payload = payload;
         this.token = token;
+        this.deviceToken = deviceToken;
         this.topic = topic;
         this.collapseId = collapseId;
         this.expiration = expiration;
         this.priority = priority;
         this.uuid = uuid;
         this.pushType = pushType;
+        this.deadline = deadline;
     }
 
     /**
@@ -121,13 +181,67 @@ public class Notification {
         return payload;
     }
 
+    /**
+     * Retrieves the size of the payload once encoded, which APNs limits to 4KB
+     * (5KB for VoIP notifications). It's computed without encoding the payload.
+     *
+     * @return The payload's size in bytes
+     */
+    public int getPayloadSize() {
+        int size = payloadSize;
+        if (size == 0) {
+            final byte[] bytes = payloadBytes;
+            payloadSize = size = bytes != null ? bytes.length : Utf8.encodedLength(payload);
+        }
+        return size;
+    }
+
+    /**
+     * Retrieves the payload encoded as UTF-8, which is encoded once and then shared by
+     * every request (and encoding) of this notification. The array must not be modified.
+     */
+    byte[] getPayloadBytes() {
+        byte[] bytes = payloadBytes;
+        if (bytes == null) {
+            payloadBytes = bytes = payload.getBytes(Constants.UTF_8);
+        }
+        return bytes;
+    }
+
+    /**
+     * Retrieves the request body carrying the payload. It's created once, so that retries,
+     * copies made with {@link #withToken(String)} and replays from a queue send the same
+     * encoded bytes rather than encoding the payload again.
+     *
+     * @return The request body, with a known content length
+     */
+    public RequestBody getRequestBody() {
+        RequestBody body = requestBody;
+        if (body == null) {
+            requestBody = body = RequestBody.create(getPayloadBytes(), JSON);
+        }
+        return body;
+    }
+
     /**
      * Retrieves the token.
      *
-     * @return The device token
+     * @return The device token (in hex, if it was parsed), or null if none was set
      */
     public String getToken() {
-        return token;
+        if (token != null) {
+            return token;
+        }
+        return deviceToken != null ? deviceToken.toString() : null;
+    }
+
+    /**
+     * Retrieves the parsed device token.
+     *
+     * @return The device token, or null if this notification was built with a token string
+     */
+    public DeviceToken getDeviceToken() {
+        return deviceToken;
     }
 
     public long getExpiration() {
@@ -146,6 +260,55 @@ public class Notification {
         return uuid;
     }
 
+    /**
+     * Retrieves the deadline, after which a queued notification is dropped rather than sent.
+     * Unlike the expiration, the deadline is never sent to APNs.
+     *
+     * @return A UNIX epoch date expressed in milliseconds, or -1 if there's no deadline
+     */
+    public long getDeadline() {
+        return deadline;
+    }
+
+    /**
+     * Returns a copy of this notification for another device, sharing its payload (which
+     * is neither rebuilt, re-serialized nor re-encoded). Build a notification once, and stamp it for
+     * each recipient of a campaign.
+     * <p>
+     * The UUID isn't copied, since it identifies a single notification.
+     *
+     * @param token The device token
+     * @return The notification for that token
+     */
+    public Notification withToken(String token) {
+        return copy(token, null);
+    }
+
+    /**
+     * Returns a copy of this notification for another device, sharing its payload.
+     * See {@link #withToken(String)}.
+     *
+     * @param token The parsed device token
+     * @return The notification for that token
+     */
+    public Notification withToken(DeviceToken token) {
+        return copy(null, token);
+    }
+
+    private Notification copy(String token, DeviceToken deviceToken) {
+        if (token == null && deviceToken == null) {
+            throw new NullPointerException("token");
+        }
+
+        final Notification copy = new Notification(payload, token, deviceToken, topic, collapseId,
+                expiration, priority, null, pushType, deadline);
+        // Encode the payload here, so that every copy shares it even if this one is never sent
+        copy.requestBody = getRequestBody();
+        copy.payloadBytes = payloadBytes;
+        copy.payloadSize = payloadSize;
+        return copy;
+    }
+
     /**
      * Builds a notification to be sent to APNS.
      */
@@ -154,12 +317,17 @@ public class Notification {
 
         private final HashMap<String, Object> root, aps, alert;
         private final String token;
+        private final DeviceToken deviceToken;
         private String topic = null;
         private String collapseId = null;
         private long expiration = -1; // defaults to -1, as 0 is a valid value (included only if greater than -1)
         private Priority priority;
         private UUID uuid;
         private String pushType;
+        private long deadline = -1;
+        private boolean truncateToFit = false;
+
+        private static final String ELLIPSIS = "\u2026";
 
         /**
          * Creates a new notification builder.
@@ -167,7 +335,26 @@ public class Notification {
          * @param token The device token
          */
         public Builder(String token) {
+            this(token, null);
+        }
+
+        /**
+         * Creates a new notification builder for a parsed device token.
+         * The notification holds the token's raw bytes, rather than its hex form.
+         * <p>
+         * This is a factory method rather than a constructor, so that
+         * {@code new Builder(null)} still resolves to {@link #Builder(String)}.
+         *
+         * @param token The device token, see {@link DeviceToken#parse(CharSequence)}
+         * @return A new builder
+         */
+        public static Builder forToken(DeviceToken token) {
+            return new Builder(null, token);
+        }
+
+        private Builder(String token, DeviceToken deviceToken) {
             this.token = token;
+            this.deviceToken = deviceToken;
             root = new HashMap<>();
             aps = new HashMap<>();
             alert = new HashMap<>();
@@ -275,6 +462,34 @@ public class Notification {
             return this;
         }
 
+        /**
+         * Sets a deadline, after which the notification is dropped (instead of being sent)
+         * if it's still queued. The deadline is never sent to APNs.
+         *
+         * @param deadline A UNIX epoch date expressed in milliseconds
+         */
+        public Builder deadline(long deadline) {
+            this.deadline = deadline;
+            return this;
+        }
+
+        /**
+         * Shortens the alert's body (and then its title, if that's not enough) when the payload
+         * would exceed the size APNs accepts: {@link #MAX_VOIP_PAYLOAD_SIZE} for the "voip" push
+         * type, and {@link #MAX_PAYLOAD_SIZE} otherwise. Text is cut between code points, and
+         * ends with an ellipsis.
+         *
+         * @param truncateToFit Whether to truncate oversized alerts
+         */
+        public Builder truncateToFit(boolean truncateToFit) {
+            this.truncateToFit = truncateToFit;
+            return this;
+        }
+
+        public Builder truncateToFit() {
+            return this.truncateToFit(true);
+        }
+
         /**
          * Sets the relevance score for this notification.
          * @param score A value between 0 and 1, both inclusive
@@ -304,12 +519,15 @@ public class Notification {
         }
 
 
+        /**
+         * Returns the size the payload would have if the notification were built now.
+         * This builds the notification: to check the size of a notification that's about
+         * to be sent, build it and use {@link Notification#getPayloadSize()} instead.
+         *
+         * @return The payload's size in bytes
+         */
         public int size() {
-            try {
-                return build().getPayload().getBytes("UTF-8").length;
-            } catch (UnsupportedEncodingException e) {
-                throw new RuntimeException(e);
-            }
+            return build().getPayloadSize();
         }
 
         /**
@@ -322,15 +540,90 @@ public class Notification {
             root.put("aps", aps);
             aps.put("alert", alert);
 
-            final String payload;
+            String payload = serialize();
+            if (truncateToFit) {
+                int excess = Utf8.encodedLength(payload)
+                        - ("voip".equals(pushType) ? MAX_VOIP_PAYLOAD_SIZE : MAX_PAYLOAD_SIZE);
+                if (excess > 0) {
+                    excess -= truncate("body", excess);
+                    if (excess > 0) {
+                        truncate("title", excess);
+                    }
+                    payload = serialize();
+                }
+            }
+
+            return new Notification(payload, token, deviceToken, topic, collapseId, expiration,
+                priority, uuid, pushType, deadline);
+        }
+
+        private String serialize() {
             try {
-                payload = mapper.writeValueAsString(root);
+                return mapper.writeValueAsString(root);
             } catch (JsonProcessingException e) {
                 // Should not happen
                 throw new RuntimeException(e);
             }
-            return new Notification(payload, token, topic, collapseId, expiration, priority, uuid,
-                pushType);
+        }
+
+        /**
+         * Shortens an alert field by at least the given number of serialized bytes, or
+         * empties it if that's not possible.
+         *
+         * @return The number of serialized bytes saved
+         */
+        private int truncate(String field, int excess) {
+            final Object value = alert.get(field);
+            if (!(value instanceof String)) {
+                return 0;
+            }
+
+            final String text = (String) value;
+
+            // Drop whole code points from the end until enough bytes are saved for the ellipsis too
+            final int needed = excess + Utf8.encodedLength(ELLIPSIS);
+            int saved = 0;
+            int end = text.length();
+            while (end > 0 && saved < needed) {
+                final int codePoint = text.codePointBefore(end);
+                end -= Character.charCount(codePoint);
+                saved += serializedLength(codePoint);
+            }
+
+            if (saved < needed) {
+                // Even the whole text isn't enough
+                alert.put(field, "");
+            } else {
+                alert.put(field, text.substring(0, end) + ELLIPSIS);
+                saved -= Utf8.encodedLength(ELLIPSIS);
+            }
+
+            return saved;
+        }
+
+        /**
+         * Returns the number of bytes a code point takes in a JSON string, as written by Jackson.
+         */
+        private static int serializedLength(int codePoint) {
+            switch (codePoint) {
+                case '"':
+                case '\\':
+                case '\b':
+                case '\t':
+                case '\n':
+                case '\f':
+                case '\r':
+                    return 2;
+                default:
+                    if (codePoint < 0x20) {
+                        return 6;
+                    }
+                    if (codePoint < 0x10000 && Character.isSurrogate((char) codePoint)) {
+                        // An unpaired surrogate, encoded as '?'
+                        return 1;
+                    }
+                    return codePoint < 0x80 ? 1 : codePoint < 0x800 ? 2 : codePoint < 0x10000 ? 3 : 4;
+            }
         }
     }
 }
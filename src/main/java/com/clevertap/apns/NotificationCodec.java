@@ -0,0 +1,359 @@
+/*
+ * Copyright (c) 2016, CleverTap
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * - Neither the name of CleverTap nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.clevertap.apns;
+
+import com.clevertap.apns.internal.Constants;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.UUID;
+
+/**
+ * A compact, versioned binary encoding of notifications, for storing them (in outboxes
+ * and spill files, for instance) or passing them between services.
+ * <p>
+ * An encoded notification is laid out as follows:
+ * <pre>
+ * version      1 byte
+ * flags        varint, marking which of the optional fields below are present
+ * token        raw bytes if it's a {@link DeviceToken} or lowercase hex (32 bytes for
+ *              today's tokens), else UTF-8
+ * topic        UTF-8 (optional)
+ * collapse ID  UTF-8 (optional)
+ * push type    UTF-8 (optional)
+ * expiration   varint (optional)
+ * UUID         16 bytes (optional)
+ * deadline     varint (optional)
+ * payload      UTF-8
+ * </pre>
+ * Lengths are written as unsigned varints. The priority is carried by the flags.
+ * <p>
+ * Decoding reads straight from a {@link ByteBuffer}, such as a slice of a memory-mapped
+ * file, without copying the record first. Tokens stored as raw bytes are decoded into a
+ * {@link DeviceToken}.
+ * <p>
+ * Notifications encoded by earlier versions (which may still be waiting in an outbox after
+ * an upgrade) can be decoded too.
+ */
+public final class NotificationCodec {
+    private static final byte VERSION = 3;
+
+    // The most common flags come first, so that they fit in a single varint byte
+    private static final int BINARY_TOKEN = 1;
+    private static final int TOPIC = 1 << 1;
+    private static final int COLLAPSE_ID = 1 << 2;
+    private static final int PUSH_TYPE = 1 << 3;
+    private static final int EXPIRATION = 1 << 4;
+    private static final int PRIORITY = 1 << 5;
+    private static final int PRIORITY_IMMEDIATE = 1 << 6;
+    private static final int UUID_PRESENT = 1 << 7;
+    private static final int DEADLINE = 1 << 8;
+
+    // Version 2 had a single byte of flags, in this order, and no deadline
+    private static final int V2_TOPIC = 1;
+    private static final int V2_COLLAPSE_ID = 1 << 1;
+    private static final int V2_PUSH_TYPE = 1 << 2;
+    private static final int V2_EXPIRATION = 1 << 3;
+    private static final int V2_UUID_PRESENT = 1 << 4;
+    private static final int V2_PRIORITY = 1 << 5;
+    private static final int V2_PRIORITY_IMMEDIATE = 1 << 6;
+    private static final int V2_BINARY_TOKEN = 1 << 7;
+
+    private NotificationCodec() {
+    }
+
+    /**
+     * Encodes a notification.
+     *
+     * @param notification The notification
+     * @return The encoded notification
+     */
+    public static byte[] encode(Notification notification) {
+        final byte[] payload = notification.getPayloadBytes();
+        final ByteBuffer out = ByteBuffer.allocate(maxEncodedSize(notification, payload.length));
+        encode(notification, payload, out);
+        return out.position() == out.capacity() ? out.array() : Arrays.copyOf(out.array(), out.position());
+    }
+
+    /**
+     * Encodes a notification into a buffer, starting at its position.
+     *
+     * @param notification The notification
+     * @param out          The buffer, whose position is advanced past the encoded notification
+     * @throws java.nio.BufferOverflowException if the buffer is too small
+     */
+    public static void encode(Notification notification, ByteBuffer out) {
+        encode(notification, notification.getPayloadBytes(), out);
+    }
+
+    private static void encode(Notification notification, byte[] payload, ByteBuffer out) {
+        final DeviceToken deviceToken = notification.getDeviceToken();
+        final String token = deviceToken != null ? null : notification.getToken();
+        final String topic = notification.getTopic();
+        final String collapseId = notification.getCollapseId();
+        final String pushType = notification.getPushType();
+        final long expiration = notification.getExpiration();
+        final UUID uuid = notification.getUuid();
+        final long deadline = notification.getDeadline();
+        final Notification.Priority priority = notification.getPriority();
+        final boolean binaryToken = deviceToken != null || isLowercaseHex(token);
+
+        int flags = 0;
+        if (topic != null) flags |= TOPIC;
+        if (collapseId != null) flags |= COLLAPSE_ID;
+        if (pushType != null) flags |= PUSH_TYPE;
+        if (expiration > -1) flags |= EXPIRATION;
+        if (uuid != null) flags |= UUID_PRESENT;
+        if (priority != null) flags |= PRIORITY;
+        if (priority == Notification.Priority.IMMEDIATE) flags |= PRIORITY_IMMEDIATE;
+        if (binaryToken) flags |= BINARY_TOKEN;
+        if (deadline > -1) flags |= DEADLINE;
+
+        out.put(VERSION);
+        putVarint(out, flags);
+
+        if (deviceToken != null) {
+            final byte[] bytes = deviceToken.bytes();
+            putVarint(out, bytes.length);
+            out.put(bytes);
+        } else if (binaryToken) {
+            putVarint(out, token.length() / 2);
+            for (int i = 0; i < token.length(); i += 2) {
+                out.put((byte) (Character.digit(token.charAt(i), 16) << 4 | Character.digit(token.charAt(i + 1), 16)));
+            }
+        } else {
+            putString(out, token);
+        }
+
+        if (topic != null) putString(out, topic);
+        if (collapseId != null) putString(out, collapseId);
+        if (pushType != null) putString(out, pushType);
+        if (expiration > -1) putVarint(out, expiration);
+        if (uuid != null) {
+            out.putLong(uuid.getMostSignificantBits());
+            out.putLong(uuid.getLeastSignificantBits());
+        }
+        if (deadline > -1) putVarint(out, deadline);
+
+        putVarint(out, payload.length);
+        out.put(payload);
+    }
+
+    /**
+     * Decodes a notification.
+     *
+     * @param bytes An encoded notification
+     * @return The notification
+     * @throws IllegalArgumentException if the bytes are not an encoded notification
+     */
+    public static Notification decode(byte[] bytes) {
+        return decode(ByteBuffer.wrap(bytes));
+    }
+
+    /**
+     * Decodes a notification from a buffer, starting at its position.
+     *
+     * @param in The buffer, whose position is advanced past the encoded notification
+     * @return The notification
+     * @throws IllegalArgumentException if the buffer doesn't hold an encoded notification
+     */
+    public static Notification decode(ByteBuffer in) {
+        try {
+            final byte version = in.get();
+            if (version == 2) {
+                return decodeV2(in);
+            }
+            if (version == 1) {
+                return decodeV1(in);
+            }
+            if (version != VERSION) {
+                throw new IllegalArgumentException("Unsupported version: " + version);
+            }
+
+            final int flags = (int) getVarint(in);
+            final DeviceToken deviceToken = (flags & BINARY_TOKEN) != 0 ? getDeviceToken(in) : null;
+            final String token = deviceToken == null ? getString(in) : null;
+            final String topic = (flags & TOPIC) != 0 ? getString(in) : null;
+            final String collapseId = (flags & COLLAPSE_ID) != 0 ? getString(in) : null;
+            final String pushType = (flags & PUSH_TYPE) != 0 ? getString(in) : null;
+            final long expiration = (flags & EXPIRATION) != 0 ? getVarint(in) : -1;
+            final UUID uuid = (flags & UUID_PRESENT) != 0 ? new UUID(in.getLong(), in.getLong()) : null;
+            final long deadline = (flags & DEADLINE) != 0 ? getVarint(in) : -1;
+            final Notification.Priority priority = (flags & PRIORITY) == 0 ? null
+                    : (flags & PRIORITY_IMMEDIATE) != 0 ? Notification.Priority.IMMEDIATE
+                    : Notification.Priority.POWERCONSIDERATION;
+
+            final String payload = getString(in);
+            return new Notification(payload, token, deviceToken, topic, collapseId, expiration, priority, uuid,
+                    pushType, deadline);
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Truncated notification", e);
+        }
+    }
+
+    private static Notification decodeV2(ByteBuffer in) {
+        final int flags = in.get() & 0xFF;
+        final DeviceToken deviceToken = (flags & V2_BINARY_TOKEN) != 0 ? getDeviceToken(in) : null;
+        final String token = deviceToken == null ? getString(in) : null;
+        final String topic = (flags & V2_TOPIC) != 0 ? getString(in) : null;
+        final String collapseId = (flags & V2_COLLAPSE_ID) != 0 ? getString(in) : null;
+        final String pushType = (flags & V2_PUSH_TYPE) != 0 ? getString(in) : null;
+        final long expiration = (flags & V2_EXPIRATION) != 0 ? getVarint(in) : -1;
+        final UUID uuid = (flags & V2_UUID_PRESENT) != 0 ? new UUID(in.getLong(), in.getLong()) : null;
+        final Notification.Priority priority = (flags & V2_PRIORITY) == 0 ? null
+                : (flags & V2_PRIORITY_IMMEDIATE) != 0 ? Notification.Priority.IMMEDIATE
+                : Notification.Priority.POWERCONSIDERATION;
+
+        final String payload = getString(in);
+        return new Notification(payload, token, deviceToken, topic, collapseId, expiration, priority, uuid,
+                pushType, -1);
+    }
+
+    /**
+     * Decodes the first version, written with a {@link java.io.DataOutputStream}.
+     */
+    private static Notification decodeV1(ByteBuffer in) {
+        final byte[] bytes = new byte[in.remaining()];
+        in.duplicate().get(bytes);
+        final ByteArrayInputStream stream = new ByteArrayInputStream(bytes);
+
+        try (DataInputStream data = new DataInputStream(stream)) {
+            final String token = data.readUTF();
+            final String topic = data.readBoolean() ? data.readUTF() : null;
+            final String collapseId = data.readBoolean() ? data.readUTF() : null;
+            final long expiration = data.readLong();
+            final byte code = data.readByte();
+            final Notification.Priority priority = code == Notification.Priority.IMMEDIATE.getCode()
+                    ? Notification.Priority.IMMEDIATE
+                    : code == Notification.Priority.POWERCONSIDERATION.getCode()
+                    ? Notification.Priority.POWERCONSIDERATION : null;
+            final String pushType = data.readBoolean() ? data.readUTF() : null;
+            final UUID uuid = data.readBoolean() ? new UUID(data.readLong(), data.readLong()) : null;
+
+            final int length = data.readInt();
+            if (length < 0 || length > stream.available()) {
+                throw new IllegalArgumentException("Truncated notification");
+            }
+            final byte[] payload = new byte[length];
+            data.readFully(payload);
+
+            in.position(in.position() + bytes.length - stream.available());
+            return new Notification(new String(payload, Constants.UTF_8), token, null, topic, collapseId,
+                    expiration, priority, uuid, pushType, -1);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Truncated notification", e);
+        }
+    }
+
+    private static int maxEncodedSize(Notification notification, int payloadLength) {
+        // Varints take up to 10 bytes, and UTF-8 up to 3 bytes per char
+        int size = 1 + 10 + 10 + payloadLength + 10 + 16 + 10;
+        final DeviceToken deviceToken = notification.getDeviceToken();
+        size += 10 + (deviceToken != null ? deviceToken.length() : 3 * notification.getToken().length());
+        size += notification.getTopic() == null ? 0 : 10 + 3 * notification.getTopic().length();
+        size += notification.getCollapseId() == null ? 0 : 10 + 3 * notification.getCollapseId().length();
+        size += notification.getPushType() == null ? 0 : 10 + 3 * notification.getPushType().length();
+        return size;
+    }
+
+    private static boolean isLowercaseHex(String s) {
+        if (s.isEmpty() || (s.length() & 1) != 0) {
+            return false;
+        }
+
+        for (int i = 0; i < s.length(); i++) {
+            final char c = s.charAt(i);
+            if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void putString(ByteBuffer out, String s) {
+        final byte[] bytes = s.getBytes(Constants.UTF_8);
+        putVarint(out, bytes.length);
+        out.put(bytes);
+    }
+
+    private static String getString(ByteBuffer in) {
+        final int length = (int) getVarint(in);
+        if (length > in.remaining()) {
+            throw new IllegalArgumentException("Truncated notification");
+        }
+
+        final String s;
+        if (in.hasArray()) {
+            s = new String(in.array(), in.arrayOffset() + in.position(), length, Constants.UTF_8);
+            in.position(in.position() + length);
+        } else {
+            final byte[] bytes = new byte[length];
+            in.get(bytes);
+            s = new String(bytes, Constants.UTF_8);
+        }
+        return s;
+    }
+
+    private static DeviceToken getDeviceToken(ByteBuffer in) {
+        final int length = (int) getVarint(in);
+        if (length == 0 || length > in.remaining()) {
+            throw new IllegalArgumentException("Truncated notification");
+        }
+
+        final byte[] bytes = new byte[length];
+        in.get(bytes);
+        return DeviceToken.wrap(bytes);
+    }
+
+    private static void putVarint(ByteBuffer out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte) value);
+    }
+
+    private static long getVarint(ByteBuffer in) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            final byte b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Malformed varint");
+    }
+}
@@ -34,6 +34,13 @@ package com.clevertap.apns;
  * A wrapper around possible responses from the push gateway.
  */
 public class NotificationResponse {
+    /**
+     * The response to every successful request. Since APNs answers a successful request
+     * with nothing but its apns-id, a single instance is shared rather than allocating one
+     * per notification.
+     */
+    public static final NotificationResponse SUCCESS = new NotificationResponse(null, 200, null, null);
+
     private final NotificationRequestError error;
     private final int httpStatusCode;
     private final String responseBody;
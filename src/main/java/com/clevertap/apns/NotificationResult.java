@@ -0,0 +1,85 @@
+/*
+ * Copyright (c) 2016, CleverTap
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * - Neither the name of CleverTap nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.clevertap.apns;
+
+/**
+ * The outcome of sending a notification.
+ */
+public class NotificationResult {
+    private final Notification notification;
+    private final NotificationResponse response;
+
+    /**
+     * Creates a new result.
+     *
+     * @param notification The notification that was sent
+     * @param response     The failure response, or null if the notification was accepted
+     */
+    public NotificationResult(Notification notification, NotificationResponse response) {
+        this.notification = notification;
+        this.response = response;
+    }
+
+    /**
+     * Returns the notification that was sent.
+     *
+     * @return The notification
+     */
+    public Notification getNotification() {
+        return notification;
+    }
+
+    /**
+     * Returns the response for a failed notification.
+     *
+     * @return The response (null if the notification was accepted)
+     */
+    public NotificationResponse getResponse() {
+        return response;
+    }
+
+    /**
+     * Checks whether the notification was accepted by APNs.
+     *
+     * @return Whether the notification was accepted
+     */
+    public boolean isSuccess() {
+        return response == null;
+    }
+
+    @Override
+    public String toString() {
+        return "NotificationResult{" +
+                "notification=" + notification +
+                ", response=" + response +
+                '}';
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright (c) 2016, CleverTap
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * - Neither the name of CleverTap nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.clevertap.apns;
+
+import com.clevertap.apns.enums.FailureReason;
+
+/**
+ * A listener for callers that only record the outcome of each notification (into primitive
+ * arrays or ring buffers, for instance), rather than handling the notification itself.
+ * Outcomes are identified by a correlation ID chosen by the caller, and are passed as
+ * primitives, so successes allocate nothing on their way to the listener.
+ * <p>
+ * See {@link ApnsClient#push(Notification, long, NotificationStatusListener)}.
+ */
+public interface NotificationStatusListener {
+    /**
+     * The reason given for successful notifications.
+     */
+    int NO_REASON = -1;
+
+    /**
+     * Signals the outcome of a notification.
+     *
+     * @param correlationId The ID the notification was pushed with
+     * @param status        The HTTP status code, or -1 if the notification wasn't sent
+     *                      (or no response was received)
+     * @param reason        The ordinal of the {@link FailureReason}, or {@link #NO_REASON}
+     *                      for a successful notification
+     */
+    void onStatus(long correlationId, int status, int reason);
+}
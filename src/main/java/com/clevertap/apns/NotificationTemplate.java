@@ -0,0 +1,361 @@
+/*
+ * Copyright (c) 2016, CleverTap
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * - Neither the name of CleverTap nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.clevertap.apns;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * A payload compiled once, with slots filled in per recipient.
+ * <p>
+ * Slots are written as <code>{{name}}</code> in the payload's JSON. A slot inside a string
+ * takes any value, which is escaped and spliced into the string. A slot outside a string
+ * stands for a whole value: numbers and booleans are written as they are, and text is
+ * written as an escaped JSON string.
+ * <pre>
+ * final NotificationTemplate template = NotificationTemplate.compile(
+ *         "{\"aps\":{\"alert\":{\"body\":\"Hi {{name}}!\"},\"badge\":{{badge}}}}");
+ *
+ * final Notification notification = template.newNotification(token)
+ *         .set("name", "Jane")
+ *         .set("badge", 3)
+ *         .topic("com.example.app")
+ *         .build();
+ * </pre>
+ * Rendering concatenates the template's fixed fragments with the slot values, so only the
+ * values are escaped; there's no object tree to build or serialize per recipient.
+ * Templates are immutable and may be shared between threads.
+ */
+public final class NotificationTemplate {
+    private static final JsonFactory JSON = new JsonFactory();
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final String[] fragments;
+    private final int[] slotIndexes;
+    private final boolean[] standalone;
+    private final List<String> slotNames;
+    private final int fixedLength;
+
+    private NotificationTemplate(String[] fragments, int[] slotIndexes, boolean[] standalone, List<String> slotNames) {
+        this.fragments = fragments;
+        this.slotIndexes = slotIndexes;
+        this.standalone = standalone;
+        this.slotNames = slotNames;
+
+        int length = 0;
+        for (String fragment : fragments) {
+            length += fragment.length();
+        }
+        this.fixedLength = length;
+    }
+
+    /**
+     * Compiles a template.
+     *
+     * @param payload The payload's JSON, with <code>{{name}}</code> slots
+     * @return The template
+     * @throws IllegalArgumentException if the payload isn't valid JSON once its slots are filled
+     */
+    public static NotificationTemplate compile(String payload) {
+        final List<String> fragments = new ArrayList<>();
+        final List<Integer> slotIndexes = new ArrayList<>();
+        final List<Boolean> standalone = new ArrayList<>();
+        final List<String> slotNames = new ArrayList<>();
+
+        boolean inString = false;
+        int fragmentStart = 0;
+        for (int i = 0; i < payload.length(); i++) {
+            final char c = payload.charAt(i);
+            if (inString && c == '\\') {
+                i++;
+            } else if (c == '"') {
+                inString = !inString;
+            } else if (c == '{' && payload.startsWith("{{", i)) {
+                final int end = payload.indexOf("}}", i + 2);
+                if (end < 0) {
+                    throw new IllegalArgumentException("Unterminated slot at " + i);
+                }
+
+                final String name = payload.substring(i + 2, end).trim();
+                if (name.isEmpty()) {
+                    throw new IllegalArgumentException("Unnamed slot at " + i);
+                }
+
+                int index = slotNames.indexOf(name);
+                if (index < 0) {
+                    index = slotNames.size();
+                    slotNames.add(name);
+                }
+
+                fragments.add(payload.substring(fragmentStart, i));
+                slotIndexes.add(index);
+                standalone.add(!inString);
+                i = end + 1;
+                fragmentStart = end + 2;
+            }
+        }
+        fragments.add(payload.substring(fragmentStart));
+
+        final int[] indexes = new int[slotIndexes.size()];
+        final boolean[] standalones = new boolean[standalone.size()];
+        for (int i = 0; i < indexes.length; i++) {
+            indexes[i] = slotIndexes.get(i);
+            standalones[i] = standalone.get(i);
+        }
+
+        final NotificationTemplate template = new NotificationTemplate(fragments.toArray(new String[0]), indexes,
+                standalones, Collections.unmodifiableList(slotNames));
+        template.validate();
+        return template;
+    }
+
+    /**
+     * Returns the names of the template's slots, in order of first appearance.
+     *
+     * @return The slot names
+     */
+    public List<String> getSlotNames() {
+        return slotNames;
+    }
+
+    /**
+     * Starts a notification for a recipient.
+     *
+     * @param token The device token
+     * @return A builder for the slot values and the headers
+     */
+    public Builder newNotification(String token) {
+        return new Builder(token, null);
+    }
+
+    /**
+     * Starts a notification for a recipient.
+     *
+     * @param token The device token
+     * @return A builder for the slot values and the headers
+     */
+    public Builder newNotification(DeviceToken token) {
+        return new Builder(null, token);
+    }
+
+    /**
+     * Renders the payload for a set of slot values.
+     *
+     * @param values The values, indexed like {@link #getSlotNames()}
+     * @return The payload
+     * @throws IllegalStateException if a value is missing
+     */
+    public String render(Object... values) {
+        if (values.length != slotNames.size()) {
+            throw new IllegalArgumentException("Expected " + slotNames.size() + " values, got " + values.length);
+        }
+
+        final StringBuilder sb = new StringBuilder(fixedLength + 16 * slotIndexes.length);
+        sb.append(fragments[0]);
+        for (int i = 0; i < slotIndexes.length; i++) {
+            final Object value = values[slotIndexes[i]];
+            if (value == null) {
+                throw new IllegalStateException("No value for slot " + slotNames.get(slotIndexes[i]));
+            }
+
+            if (value instanceof CharSequence) {
+                if (standalone[i]) {
+                    sb.append('"');
+                    escape((CharSequence) value, sb);
+                    sb.append('"');
+                } else {
+                    escape((CharSequence) value, sb);
+                }
+            } else if (value instanceof Number || value instanceof Boolean) {
+                sb.append(value);
+            } else {
+                throw new IllegalArgumentException("Unsupported value for slot "
+                        + slotNames.get(slotIndexes[i]) + ": " + value.getClass().getName());
+            }
+
+            sb.append(fragments[i + 1]);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Checks that the template renders valid JSON.
+     */
+    private void validate() {
+        final Object[] values = new Object[slotNames.size()];
+        Arrays.fill(values, 0);
+        final String sample = render(values);
+
+        try (JsonParser parser = JSON.createParser(sample)) {
+            //noinspection StatementWithEmptyBody
+            while (parser.nextToken() != null) {
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Invalid template: " + e.getMessage(), e);
+        }
+    }
+
+    private static void escape(CharSequence s, StringBuilder sb) {
+        for (int i = 0; i < s.length(); i++) {
+            final char c = s.charAt(i);
+            switch (c) {
+                case '"':
+                    sb.append("\\\"");
+                    break;
+                case '\\':
+                    sb.append("\\\\");
+                    break;
+                case '\n':
+                    sb.append("\\n");
+                    break;
+                case '\r':
+                    sb.append("\\r");
+                    break;
+                case '\t':
+                    sb.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        sb.append("\\u00").append(HEX[c >> 4]).append(HEX[c & 0xF]);
+                    } else {
+                        sb.append(c);
+                    }
+            }
+        }
+    }
+
+    /**
+     * Collects a recipient's slot values and headers.
+     */
+    public final class Builder {
+        private final String token;
+        private final DeviceToken deviceToken;
+        private final Object[] values = new Object[slotNames.size()];
+        private String topic = null;
+        private String collapseId = null;
+        private long expiration = -1;
+        private Notification.Priority priority;
+        private UUID uuid;
+        private String pushType;
+        private long deadline = -1;
+
+        private Builder(String token, DeviceToken deviceToken) {
+            this.token = token;
+            this.deviceToken = deviceToken;
+        }
+
+        public Builder set(String slot, CharSequence value) {
+            return put(slot, value);
+        }
+
+        public Builder set(String slot, long value) {
+            return put(slot, value);
+        }
+
+        public Builder set(String slot, double value) {
+            if (Double.isNaN(value) || Double.isInfinite(value)) {
+                throw new IllegalArgumentException("Not a JSON number: " + value);
+            }
+            return put(slot, value);
+        }
+
+        public Builder set(String slot, boolean value) {
+            return put(slot, value);
+        }
+
+        private Builder put(String slot, Object value) {
+            final int index = slotNames.indexOf(slot);
+            if (index < 0) {
+                throw new IllegalArgumentException("No such slot: " + slot);
+            }
+            values[index] = value;
+            return this;
+        }
+
+        public Builder topic(String topic) {
+            this.topic = topic;
+            return this;
+        }
+
+        public Builder collapseId(String collapseId) {
+            this.collapseId = collapseId;
+            return this;
+        }
+
+        public Builder expiration(long expiration) {
+            this.expiration = expiration;
+            return this;
+        }
+
+        public Builder uuid(UUID uuid) {
+            this.uuid = uuid;
+            return this;
+        }
+
+        public Builder priority(Notification.Priority priority) {
+            this.priority = priority;
+            return this;
+        }
+
+        public Builder pushType(String pushType) {
+            this.pushType = pushType;
+            return this;
+        }
+
+        /**
+         * Sets a deadline, see {@link Notification.Builder#deadline(long)}.
+         *
+         * @param deadline A UNIX epoch date expressed in milliseconds
+         */
+        public Builder deadline(long deadline) {
+            this.deadline = deadline;
+            return this;
+        }
+
+        /**
+         * Renders the payload and builds the notification.
+         *
+         * @return The notification
+         * @throws IllegalStateException if a slot wasn't set
+         */
+        public Notification build() {
+            return new Notification(render(values), token, deviceToken, topic, collapseId, expiration,
+                    priority, uuid, pushType, deadline);
+        }
+    }
+}
@@ -31,11 +31,16 @@
 package com.clevertap.apns.clients;
 
 import com.clevertap.apns.ApnsClient;
+import com.clevertap.apns.Notification;
+import com.clevertap.apns.NotificationResponseListener;
 import com.clevertap.apns.exceptions.InvalidTrustManagerException;
+import com.clevertap.apns.internal.VirtualThreads;
 import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
 import okhttp3.OkHttpClient;
 import okhttp3.OkHttpClient.Builder;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.security.KeyManagementException;
@@ -43,12 +48,21 @@ import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
 import java.security.UnrecoverableKeyException;
 import java.security.cert.CertificateException;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
 
 /**
  * A builder to build an APNS client.
  */
 public class ApnsClientBuilder {
+    /**
+     * The number of concurrent requests allowed when running on virtual threads.
+     * This matches the number of concurrent streams APNs allows on a connection.
+     */
+    private static final int VIRTUAL_THREAD_MAX_REQUESTS = 1000;
+
     private InputStream certificate;
     private boolean production;
     private String password;
@@ -59,10 +73,29 @@ public class ApnsClientBuilder {
     private String defaultTopic = null;
 
     private OkHttpClient.Builder builder;
+    private boolean customBuilder = false;
     private ConnectionPool connectionPool;
     private String apnsAuthKey;
     private String teamID;
     private String keyID;
+    private boolean virtualThreads = false;
+    private int maxInFlight = 0;
+    private File spillDirectory;
+    private int spillHighWaterMark;
+    private long expirationMargin;
+    private boolean coalescing = false;
+    private Function<Notification, String> tenantKey;
+    private final Map<String, Integer> tenantWeights = new HashMap<>();
+    private final Map<String, Integer> tenantMaxInFlight = new HashMap<>();
+    private CircuitBreaker circuitBreaker;
+    private InvalidTokenCollector.Sink invalidTokenSink;
+    private int invalidTokenBatchSize;
+    private long invalidTokenFlushInterval;
+    private int resultHandlerThreads = 0;
+    private int resultBufferSize;
+    private PipelinedApnsClient.BatchHandler resultBatchHandler;
+    private File outboxDirectory;
+    private NotificationResponseListener outboxReplayListener;
 
     /**
      * Creates a default OkHttp client builder that can be customized later and
@@ -92,6 +125,7 @@ public class ApnsClientBuilder {
      */
     public ApnsClientBuilder withOkHttpClientBuilder(OkHttpClient.Builder clientBuilder) {
         this.builder = clientBuilder;
+        this.customBuilder = true;
         return this;
     }
 
@@ -166,6 +200,216 @@ public class ApnsClientBuilder {
         return this;
     }
 
+    /**
+     * Runs OkHttp's dispatcher calls on virtual threads, started per call, instead of its
+     * pool of platform threads. The dispatcher's limits are raised to the number of
+     * concurrent streams APNs allows on a connection.
+     * <p>
+     * This doesn't make waiting for a response free: OkHttp 4.8.1 waits for response headers
+     * with {@code Object.wait()} inside a {@code synchronized} block, which pins the virtual
+     * thread to its carrier on JDK 21. Calls waiting for a response therefore still occupy
+     * a platform thread each, and their number is bounded by the virtual thread scheduler's
+     * maximum pool size ({@code jdk.virtualThreadScheduler.maxPoolSize}).
+     * <p>
+     * Requires asynchronous mode. Synchronous requests run on the calling thread rather than
+     * in the dispatcher, and would pin it the same way, so there's nothing this setting could
+     * change for them. Can't be combined with
+     * {@link #withOkHttpClientBuilder(OkHttpClient.Builder)}, whose dispatcher is left to
+     * the caller.
+     * <p>
+     * Virtual threads require Java 21 or later. On older JVMs, the default dispatcher is
+     * used instead (see {@link VirtualThreads#isAvailable()}).
+     *
+     * @return the builder
+     */
+    public ApnsClientBuilder withVirtualThreads() {
+        this.virtualThreads = true;
+        return this;
+    }
+
+    /**
+     * Limits the number of notifications awaiting a response, queueing the rest inside
+     * the client rather than in OkHttp's dispatcher. Requires asynchronous mode.
+     * See {@link QueuedApnsClient}.
+     *
+     * @param maxInFlight The maximum number of notifications in flight
+     * @return the builder
+     */
+    public ApnsClientBuilder withMaxInFlight(int maxInFlight) {
+        this.maxInFlight = maxInFlight;
+        return this;
+    }
+
+    /**
+     * Spills queued notifications beyond a high-water mark to memory-mapped files, keeping
+     * the heap flat while the gateway is slow. Requires {@link #withMaxInFlight(int)}.
+     *
+     * @param directory     The directory for the spill files. Each client claims a subdirectory
+     *                      of its own, so several may share it
+     * @param highWaterMark The maximum number of queued notifications held in memory
+     * @return the builder
+     */
+    public ApnsClientBuilder withSpillDirectory(File directory, int highWaterMark) {
+        this.spillDirectory = directory;
+        this.spillHighWaterMark = highWaterMark;
+        return this;
+    }
+
+    /**
+     * Drops queued notifications which are within a margin of their expiration or deadline,
+     * rather than sending them. Requires {@link #withMaxInFlight(int)}.
+     *
+     * @param expirationMargin The margin, in milliseconds
+     * @return the builder
+     */
+    public ApnsClientBuilder withExpirationMargin(long expirationMargin) {
+        this.expirationMargin = expirationMargin;
+        return this;
+    }
+
+    /**
+     * Lets notifications replace queued ones with the same device token, topic and
+     * collapse ID, so that only the newest is sent. Requires {@link #withMaxInFlight(int)}.
+     *
+     * @return the builder
+     */
+    public ApnsClientBuilder withCoalescing() {
+        this.coalescing = true;
+        return this;
+    }
+
+    /**
+     * Sets how queued notifications are assigned to tenants, which take turns sending.
+     * Defaults to the notification's topic. Requires {@link #withMaxInFlight(int)}.
+     *
+     * @param tenantKey Returns the tenant's key for a notification
+     * @return the builder
+     */
+    public ApnsClientBuilder withTenantKey(Function<Notification, String> tenantKey) {
+        this.tenantKey = tenantKey;
+        return this;
+    }
+
+    /**
+     * Sets the number of notifications a tenant sends on each of its turns.
+     * Requires {@link #withMaxInFlight(int)}.
+     *
+     * @param tenant The tenant's key
+     * @param weight The weight (1 by default)
+     * @return the builder
+     */
+    public ApnsClientBuilder withTenantWeight(String tenant, int weight) {
+        this.tenantWeights.put(tenant, weight);
+        return this;
+    }
+
+    /**
+     * Caps the number of a tenant's notifications in flight. Requires {@link #withMaxInFlight(int)}.
+     *
+     * @param tenant      The tenant's key
+     * @param maxInFlight The maximum number of the tenant's notifications in flight
+     * @return the builder
+     */
+    public ApnsClientBuilder withTenantMaxInFlight(String tenant, int maxInFlight) {
+        this.tenantMaxInFlight.put(tenant, maxInFlight);
+        return this;
+    }
+
+    /**
+     * Stops sending notifications while the gateway is failing, with a breaker using the
+     * default settings. Requires asynchronous mode. See {@link CircuitBreaker}.
+     *
+     * @return the builder
+     */
+    public ApnsClientBuilder withCircuitBreaker() {
+        return withCircuitBreaker(new CircuitBreaker());
+    }
+
+    /**
+     * Stops sending notifications while the gateway is failing. With an in-flight limit,
+     * notifications wait in the queue while the breaker is open; otherwise, they're failed
+     * right away.
+     *
+     * @param circuitBreaker The circuit breaker
+     * @return the builder
+     */
+    public ApnsClientBuilder withCircuitBreaker(CircuitBreaker circuitBreaker) {
+        this.circuitBreaker = circuitBreaker;
+        return this;
+    }
+
+    /**
+     * Collects the device tokens APNs reports as invalid, and hands them to a sink in
+     * batches. Requires asynchronous mode. See {@link InvalidTokenCollector}.
+     *
+     * @param sink          The sink receiving batches of invalid tokens
+     * @param batchSize     The number of tokens which triggers a flush
+     * @param flushInterval The longest a token waits before being flushed, in milliseconds
+     * @return the builder
+     */
+    public ApnsClientBuilder withInvalidTokenSink(InvalidTokenCollector.Sink sink, int batchSize, long flushInterval) {
+        this.invalidTokenSink = sink;
+        this.invalidTokenBatchSize = batchSize;
+        this.invalidTokenFlushInterval = flushInterval;
+        return this;
+    }
+
+    /**
+     * Calls listeners on dedicated handler threads rather than on the threads reading
+     * responses from the gateway. Requires asynchronous mode. See {@link PipelinedApnsClient}.
+     *
+     * @param handlerThreads The number of handler threads
+     * @return the builder
+     */
+    public ApnsClientBuilder withResultHandlers(int handlerThreads) {
+        return withResultHandlers(handlerThreads, PipelinedApnsClient.DEFAULT_BUFFER_SIZE, null);
+    }
+
+    /**
+     * Calls listeners on dedicated handler threads, handing each batch of outcomes to a
+     * handler first so that they can be recorded in bulk.
+     *
+     * @param handlerThreads The number of handler threads
+     * @param bufferSize     The number of outcomes each handler thread can hold
+     * @param batchHandler   The handler receiving each batch of outcomes, or null
+     * @return the builder
+     */
+    public ApnsClientBuilder withResultHandlers(int handlerThreads, int bufferSize,
+                                               PipelinedApnsClient.BatchHandler batchHandler) {
+        this.resultHandlerThreads = handlerThreads;
+        this.resultBufferSize = bufferSize;
+        this.resultBatchHandler = batchHandler;
+        return this;
+    }
+
+    /**
+     * Records notifications in a durable outbox before sending them, so that the ones
+     * left unsent when the JVM dies can be sent again. Requires asynchronous mode.
+     * See {@link OutboxApnsClient}.
+     *
+     * @param directory The directory holding the outbox, which only one client at a time
+     *                  may use
+     * @return the builder
+     */
+    public ApnsClientBuilder withOutbox(File directory) {
+        return withOutbox(directory, null);
+    }
+
+    /**
+     * Records notifications in a durable outbox before sending them, and sends the ones
+     * left unacknowledged by a previous run as soon as the client is built.
+     *
+     * @param directory      The directory holding the outbox, which only one client at a
+     *                       time may use
+     * @param replayListener The listener to be called for the notifications sent again
+     * @return the builder
+     */
+    public ApnsClientBuilder withOutbox(File directory, NotificationResponseListener replayListener) {
+        this.outboxDirectory = directory;
+        this.outboxReplayListener = replayListener;
+        return this;
+    }
+
     public ApnsClientBuilder withDefaultTopic(String defaultTopic) {
         this.defaultTopic = defaultTopic;
         return this;
@@ -188,6 +432,95 @@ public class ApnsClientBuilder {
             builder.connectionPool(connectionPool);
         }
 
+        if (virtualThreads && !asynchronous) {
+            throw new IllegalArgumentException("Virtual threads require asynchronous mode");
+        }
+
+        if (virtualThreads && customBuilder) {
+            throw new IllegalArgumentException("Virtual threads can't replace the dispatcher of "
+                    + "a custom OkHttp client builder");
+        }
+
+        if (virtualThreads && VirtualThreads.isAvailable()) {
+            final Dispatcher dispatcher = new Dispatcher(VirtualThreads.newExecutor());
+            dispatcher.setMaxRequests(VIRTUAL_THREAD_MAX_REQUESTS);
+            dispatcher.setMaxRequestsPerHost(VIRTUAL_THREAD_MAX_REQUESTS);
+            builder.dispatcher(dispatcher);
+        }
+
+        if ((outboxDirectory != null || maxInFlight > 0 || resultHandlerThreads > 0 || invalidTokenSink != null
+                || circuitBreaker != null) && !asynchronous) {
+            throw new IllegalArgumentException("Outboxes, in-flight limits, result handlers, invalid token sinks "
+                    + "and circuit breakers require asynchronous mode");
+        }
+
+        if (spillDirectory != null && maxInFlight <= 0) {
+            throw new IllegalArgumentException("Spilling requires an in-flight limit");
+        }
+
+        if (expirationMargin != 0 && maxInFlight <= 0) {
+            throw new IllegalArgumentException("Expiration margins require an in-flight limit");
+        }
+
+        if (coalescing && maxInFlight <= 0) {
+            throw new IllegalArgumentException("Coalescing requires an in-flight limit");
+        }
+
+        if ((tenantKey != null || !tenantWeights.isEmpty() || !tenantMaxInFlight.isEmpty()) && maxInFlight <= 0) {
+            throw new IllegalArgumentException("Tenant scheduling requires an in-flight limit");
+        }
+
+        ApnsClient client = buildOkHttpClient();
+
+        if (maxInFlight > 0) {
+            // Calls must never wait in the dispatcher's own queue
+            final Dispatcher dispatcher = client.getHttpClient().dispatcher();
+            dispatcher.setMaxRequests(Math.max(dispatcher.getMaxRequests(), maxInFlight));
+            dispatcher.setMaxRequestsPerHost(Math.max(dispatcher.getMaxRequestsPerHost(), maxInFlight));
+
+            final QueuedApnsClient queued = spillDirectory == null
+                    ? new QueuedApnsClient(client, maxInFlight)
+                    : new QueuedApnsClient(client, maxInFlight, spillDirectory, spillHighWaterMark);
+            queued.setExpirationMargin(expirationMargin);
+            queued.setCoalescing(coalescing);
+            if (tenantKey != null) {
+                queued.setTenantKey(tenantKey);
+            }
+            tenantWeights.forEach(queued::setTenantWeight);
+            tenantMaxInFlight.forEach(queued::setTenantMaxInFlight);
+            if (circuitBreaker != null) {
+                queued.setCircuitBreaker(circuitBreaker);
+            }
+            client = queued;
+        } else if (circuitBreaker != null) {
+            client = new CircuitBreakerApnsClient(client, circuitBreaker);
+        }
+
+        if (invalidTokenSink != null) {
+            client = new InvalidTokenCollector(client, invalidTokenSink, defaultTopic, invalidTokenBatchSize,
+                    invalidTokenFlushInterval);
+        }
+
+        if (resultHandlerThreads > 0) {
+            // Outside the queue, which only needs the responding thread briefly, but inside the
+            // outbox, so that notifications are acknowledged once their listeners are done
+            client = new PipelinedApnsClient(client, resultHandlerThreads, resultBufferSize, resultBatchHandler);
+        }
+
+        if (outboxDirectory != null) {
+            final OutboxApnsClient outbox = new OutboxApnsClient(client, outboxDirectory);
+            if (outboxReplayListener != null) {
+                outbox.replayUnacknowledged(outboxReplayListener);
+            }
+            client = outbox;
+        }
+
+        return client;
+    }
+
+    private ApnsClient buildOkHttpClient() throws CertificateException,
+            NoSuchAlgorithmException, KeyStoreException, IOException,
+            UnrecoverableKeyException, KeyManagementException, InvalidTrustManagerException {
         if (certificate != null) {
             if (asynchronous) {
                 return new AsyncOkHttpApnsClient(certificate, password, production, defaultTopic, builder, connectionPort, gatewayUrl);
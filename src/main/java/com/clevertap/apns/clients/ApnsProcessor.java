@@ -0,0 +1,268 @@
+/*
+ * Copyright (c) 2016, CleverTap
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * - Neither the name of CleverTap nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.clevertap.apns.clients;
+
+import com.clevertap.apns.ApnsClient;
+import com.clevertap.apns.Notification;
+import com.clevertap.apns.NotificationResponse;
+import com.clevertap.apns.NotificationResponseListener;
+import com.clevertap.apns.NotificationResult;
+import org.reactivestreams.Processor;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A Reactive Streams processor which sends the notifications it receives through an
+ * asynchronous client, and publishes their results.
+ * <p>
+ * Notifications are requested from upstream only as in-flight slots become free: a slot
+ * is taken when a notification is requested, and released once its result has been
+ * delivered downstream. When APNs slows down (or the result subscriber does), upstream
+ * consumption slows down with it. No notifications are requested until a result
+ * subscriber has subscribed.
+ * <p>
+ * On Java 9 and later, use {@link org.reactivestreams.FlowAdapters} to bridge this
+ * processor to {@code java.util.concurrent.Flow}.
+ */
+public class ApnsProcessor implements Processor<Notification, NotificationResult> {
+    private final ApnsClient client;
+
+    private final Queue<NotificationResult> results = new ConcurrentLinkedQueue<>();
+    private final AtomicLong requested = new AtomicLong();
+    private final AtomicInteger unfinished = new AtomicInteger();
+    private final AtomicInteger wip = new AtomicInteger();
+    private final AtomicBoolean subscribed = new AtomicBoolean();
+
+    private volatile Subscription upstream;
+    private volatile Subscriber<? super NotificationResult> downstream;
+    private volatile boolean upstreamDone;
+    private volatile Throwable error;
+    private volatile Throwable invalidRequest;
+    private volatile boolean cancelled;
+
+    // Only accessed from within drain()
+    private int freeSlots;
+    private boolean terminated;
+
+    /**
+     * Creates a new processor.
+     *
+     * @param client      An asynchronous client
+     * @param maxInFlight The maximum number of notifications that have been requested from
+     *                    upstream, but whose results haven't yet been delivered downstream
+     */
+    public ApnsProcessor(ApnsClient client, int maxInFlight) {
+        if (client.isSynchronous()) {
+            throw new IllegalArgumentException("An asynchronous client is required");
+        }
+
+        if (maxInFlight <= 0) {
+            throw new IllegalArgumentException("maxInFlight must be positive: " + maxInFlight);
+        }
+
+        this.client = client;
+        this.freeSlots = maxInFlight;
+    }
+
+    @Override
+    public void onSubscribe(Subscription subscription) {
+        Objects.requireNonNull(subscription, "subscription");
+
+        if (upstream != null || cancelled) {
+            subscription.cancel();
+            return;
+        }
+
+        upstream = subscription;
+        drain();
+    }
+
+    @Override
+    public void onNext(Notification notification) {
+        Objects.requireNonNull(notification, "notification");
+
+        unfinished.incrementAndGet();
+        client.push(notification, new NotificationResponseListener() {
+            @Override
+            public void onSuccess(Notification notification) {
+                results.offer(new NotificationResult(notification, null));
+                drain();
+            }
+
+            @Override
+            public void onFailure(Notification notification, NotificationResponse response) {
+                results.offer(new NotificationResult(notification, response));
+                drain();
+            }
+        });
+    }
+
+    @Override
+    public void onError(Throwable t) {
+        Objects.requireNonNull(t, "throwable");
+
+        error = t;
+        upstreamDone = true;
+        drain();
+    }
+
+    @Override
+    public void onComplete() {
+        upstreamDone = true;
+        drain();
+    }
+
+    @Override
+    public void subscribe(Subscriber<? super NotificationResult> subscriber) {
+        Objects.requireNonNull(subscriber, "subscriber");
+
+        if (!subscribed.compareAndSet(false, true)) {
+            subscriber.onSubscribe(new Subscription() {
+                @Override
+                public void request(long n) {
+                }
+
+                @Override
+                public void cancel() {
+                }
+            });
+            subscriber.onError(new IllegalStateException("This processor only supports a single subscriber"));
+            return;
+        }
+
+        subscriber.onSubscribe(new Subscription() {
+            @Override
+            public void request(long n) {
+                if (n <= 0) {
+                    invalidRequest = new IllegalArgumentException("Non-positive request: " + n);
+                    cancelled = true;
+                } else {
+                    long current, next;
+                    do {
+                        current = requested.get();
+                        next = current + n < 0 ? Long.MAX_VALUE : current + n;
+                    } while (!requested.compareAndSet(current, next));
+                }
+
+                drain();
+            }
+
+            @Override
+            public void cancel() {
+                cancelled = true;
+                drain();
+            }
+        });
+
+        downstream = subscriber;
+        drain();
+    }
+
+    /**
+     * Delivers results downstream and requests more notifications from upstream.
+     * Only one thread runs the loop at a time, so that signals are serialized.
+     */
+    private void drain() {
+        if (wip.getAndIncrement() != 0) {
+            return;
+        }
+
+        int missed = 1;
+        do {
+            final Subscriber<? super NotificationResult> subscriber = downstream;
+            if (subscriber != null && !terminated) {
+                if (cancelled) {
+                    terminated = true;
+                    results.clear();
+
+                    final Subscription subscription = upstream;
+                    if (subscription != null) {
+                        subscription.cancel();
+                    }
+
+                    if (invalidRequest != null) {
+                        subscriber.onError(invalidRequest);
+                    }
+                } else {
+                    deliver(subscriber);
+                }
+            }
+
+            missed = wip.addAndGet(-missed);
+        } while (missed != 0);
+    }
+
+    private void deliver(Subscriber<? super NotificationResult> subscriber) {
+        final long demand = requested.get();
+        long emitted = 0;
+
+        while (emitted != demand) {
+            final NotificationResult result = results.poll();
+            if (result == null) {
+                break;
+            }
+
+            subscriber.onNext(result);
+            emitted++;
+            freeSlots++;
+            unfinished.decrementAndGet();
+        }
+
+        if (emitted != 0 && demand != Long.MAX_VALUE) {
+            requested.addAndGet(-emitted);
+        }
+
+        if (upstreamDone) {
+            if (unfinished.get() == 0) {
+                terminated = true;
+                if (error != null) {
+                    subscriber.onError(error);
+                } else {
+                    subscriber.onComplete();
+                }
+            }
+        } else {
+            final Subscription subscription = upstream;
+            if (subscription != null && freeSlots > 0) {
+                final int n = freeSlots;
+                freeSlots = 0;
+                subscription.request(n);
+            }
+        }
+    }
+}
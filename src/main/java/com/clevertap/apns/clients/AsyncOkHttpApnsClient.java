@@ -33,6 +33,8 @@ package com.clevertap.apns.clients;
 import com.clevertap.apns.Notification;
 import com.clevertap.apns.NotificationResponse;
 import com.clevertap.apns.NotificationResponseListener;
+import com.clevertap.apns.NotificationStatusListener;
+import com.clevertap.apns.enums.FailureReason;
 import com.clevertap.apns.exceptions.InvalidTrustManagerException;
 import okhttp3.*;
 
@@ -112,34 +114,78 @@ public class AsyncOkHttpApnsClient extends SyncOkHttpApnsClient {
     public void push(Notification notification, NotificationResponseListener nrl) {
         final Request request = buildRequest(notification);
 
-        client.newCall(request).enqueue(new Callback() {
-            @Override
-            public void onFailure(Call call, IOException e) {
-                nrl.onFailure(notification, new NotificationResponse(null, -1, null, e));
-            }
+        client.newCall(request).enqueue(new ResponseCallback(notification, nrl, null, 0));
+    }
 
-            @Override
-            public void onResponse(Call call, Response response) throws IOException {
-                final NotificationResponse nr;
-
-                try {
-                    nr = parseResponse(response);
-                } catch (Throwable t) {
-                    nrl.onFailure(notification, new NotificationResponse(null, -1, null, t));
-                    return;
-                } finally {
-                    if (response != null) {
-                        response.body().close();
-                    }
-                }
+    @Override
+    public void push(Notification notification, long correlationId, NotificationStatusListener listener) {
+        final Request request = buildRequest(notification);
 
-                if (nr.getHttpStatusCode() == 200) {
-                    nrl.onSuccess(notification);
-                } else {
-                    nrl.onFailure(notification, nr);
+        client.newCall(request).enqueue(new ResponseCallback(notification, null, listener, correlationId));
+    }
+
+    /**
+     * Relays the outcome of a call to the listener, replaying the request on a fresh
+     * connection if the gateway refused it without processing it.
+     */
+    private class ResponseCallback implements Callback {
+        private final Notification notification;
+        private final NotificationResponseListener nrl;
+        private final NotificationStatusListener statusListener;
+        private final long correlationId;
+        private int replays = 0;
+
+        ResponseCallback(Notification notification, NotificationResponseListener nrl,
+                         NotificationStatusListener statusListener, long correlationId) {
+            this.notification = notification;
+            this.nrl = nrl;
+            this.statusListener = statusListener;
+            this.correlationId = correlationId;
+        }
+
+        @Override
+        public void onFailure(Call call, IOException e) {
+            if (replays < MAX_UNPROCESSED_REPLAYS && isUnprocessed(e)) {
+                replays++;
+                client.newCall(call.request()).enqueue(this);
+                return;
+            }
+
+            failed(new NotificationResponse(null, -1, null, e));
+        }
+
+        @Override
+        public void onResponse(Call call, Response response) throws IOException {
+            final NotificationResponse nr;
+
+            try {
+                nr = parseResponse(response);
+            } catch (Throwable t) {
+                failed(new NotificationResponse(null, -1, null, t));
+                return;
+            } finally {
+                if (response != null) {
+                    response.body().close();
                 }
             }
-        });
 
+            checkProviderToken(call.request(), nr);
+            if (nr.getHttpStatusCode() != 200) {
+                failed(nr);
+            } else if (statusListener != null) {
+                statusListener.onStatus(correlationId, 200, NotificationStatusListener.NO_REASON);
+            } else {
+                nrl.onSuccess(notification);
+            }
+        }
+
+        private void failed(NotificationResponse nr) {
+            if (statusListener != null) {
+                statusListener.onStatus(correlationId, nr.getHttpStatusCode(),
+                        FailureReason.parse(nr.getResponseBody()).ordinal());
+            } else {
+                nrl.onFailure(notification, nr);
+            }
+        }
     }
 }
@@ -0,0 +1,348 @@
+/*
+ * Copyright (c) 2016, CleverTap
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * - Neither the name of CleverTap nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.clevertap.apns.clients;
+
+import com.clevertap.apns.NotificationResponse;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+
+/**
+ * Stops sending notifications to a gateway which is failing, and probes it for recovery
+ * with a trickle of notifications.
+ * <p>
+ * The breaker starts closed, letting every notification through. Outcomes are counted
+ * over a rolling window: once the window holds at least the minimum number of outcomes
+ * and the share of gateway failures (5xx responses, and requests that failed on the
+ * network) reaches the threshold, the breaker opens. While open, no notification is let
+ * through. After the open duration, the breaker is half-open: a few probes are let through,
+ * and the breaker closes if they all succeed, or opens again as soon as one fails.
+ * <p>
+ * Other responses, such as a rejected device token, show that the gateway is up, and count
+ * as successes. Notifications failed locally, without reaching the network, don't count.
+ * <p>
+ * A {@link QueuedApnsClient} holds notifications in its queue while its breaker is open;
+ * without a queue, see {@link CircuitBreakerApnsClient}, which fails them right away.
+ */
+public class CircuitBreaker {
+    public static final double DEFAULT_FAILURE_RATE = 0.5;
+    public static final int DEFAULT_MINIMUM_REQUESTS = 20;
+    public static final long DEFAULT_WINDOW_MILLIS = TimeUnit.SECONDS.toMillis(10);
+    public static final long DEFAULT_OPEN_MILLIS = TimeUnit.SECONDS.toMillis(5);
+    public static final int DEFAULT_PROBES = 3;
+
+    /**
+     * Returned by {@link #tryAcquire()} when a notification may not be sent.
+     */
+    public static final long NOT_PERMITTED = -1;
+
+    // Permits granted while closed; probes get the number of their half-open period instead
+    private static final long CLOSED_PERMIT = 0;
+
+    private static final int BUCKETS = 10;
+
+    private static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(r -> {
+        final Thread thread = new Thread(r, "apns-circuit-breaker");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final double failureRate;
+    private final int minimumRequests;
+    private final long bucketMillis;
+    private final long openMillis;
+    private final int probes;
+    private final LongSupplier clock;
+    private final List<Consumer<State>> listeners = new CopyOnWriteArrayList<>();
+
+    // The rolling window: each bucket counts the outcomes of one slice of it
+    private final long[] bucketStarts = new long[BUCKETS];
+    private final int[] bucketSuccesses = new int[BUCKETS];
+    private final int[] bucketFailures = new int[BUCKETS];
+
+    private State state = State.CLOSED;
+    private long openedAt;
+    private int probesInFlight;
+    private int probesSucceeded;
+    private long generation = CLOSED_PERMIT;
+    private long opened;
+
+    /**
+     * Creates a breaker with the default settings: it opens when half of at least 20 outcomes
+     * in 10 seconds are failures, stays open for 5 seconds, and then lets 3 probes through.
+     */
+    public CircuitBreaker() {
+        this(DEFAULT_FAILURE_RATE, DEFAULT_MINIMUM_REQUESTS, DEFAULT_WINDOW_MILLIS, DEFAULT_OPEN_MILLIS,
+                DEFAULT_PROBES);
+    }
+
+    /**
+     * Creates a breaker.
+     *
+     * @param failureRate     The share of failures (between 0 and 1) which opens the breaker
+     * @param minimumRequests The number of outcomes the window must hold before it opens
+     * @param windowMillis    The length of the rolling window, in milliseconds
+     * @param openMillis      How long the breaker stays open before probing, in milliseconds
+     * @param probes          The number of probes which must succeed to close the breaker
+     */
+    public CircuitBreaker(double failureRate, int minimumRequests, long windowMillis, long openMillis, int probes) {
+        this(failureRate, minimumRequests, windowMillis, openMillis, probes, System::currentTimeMillis);
+    }
+
+    CircuitBreaker(double failureRate, int minimumRequests, long windowMillis, long openMillis, int probes,
+                   LongSupplier clock) {
+        if (failureRate <= 0 || failureRate > 1 || minimumRequests <= 0 || windowMillis < BUCKETS
+                || openMillis <= 0 || probes <= 0) {
+            throw new IllegalArgumentException("Invalid circuit breaker settings");
+        }
+
+        this.failureRate = failureRate;
+        this.minimumRequests = minimumRequests;
+        this.bucketMillis = windowMillis / BUCKETS;
+        this.openMillis = openMillis;
+        this.probes = probes;
+        this.clock = clock;
+    }
+
+    /**
+     * Registers a listener called (outside the breaker's lock) whenever its state changes.
+     *
+     * @param listener The listener
+     */
+    public void addStateListener(Consumer<State> listener) {
+        listeners.add(listener);
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    /**
+     * Returns the number of times the breaker has opened.
+     *
+     * @return The number of times the breaker has opened
+     */
+    public synchronized long getOpenedCount() {
+        return opened;
+    }
+
+    /**
+     * Asks to send a notification. Every permit granted must be handed back with
+     * {@link #onResult(long, NotificationResponse)} or {@link #release(long)}.
+     *
+     * @return A permit, or {@link #NOT_PERMITTED} if the notification may not be sent
+     */
+    public long tryAcquire() {
+        final long permit;
+        final State changed;
+        synchronized (this) {
+            changed = state == State.OPEN && clock.getAsLong() - openedAt >= openMillis ? halfOpen() : null;
+            if (state == State.CLOSED) {
+                permit = CLOSED_PERMIT;
+            } else if (state == State.HALF_OPEN && probesInFlight < probes) {
+                probesInFlight++;
+                permit = generation;
+            } else {
+                permit = NOT_PERMITTED;
+            }
+        }
+
+        notifyListeners(changed);
+        return permit;
+    }
+
+    /**
+     * Gives back a permit for a notification which wasn't sent.
+     *
+     * @param permit The permit from {@link #tryAcquire()}
+     */
+    public synchronized void release(long permit) {
+        if (isCurrentProbe(permit)) {
+            probesInFlight--;
+        }
+    }
+
+    /**
+     * Records the outcome of a notification that was let through.
+     *
+     * @param permit   The permit the notification was sent with
+     * @param response The failure response, or null if the notification was accepted
+     */
+    public void onResult(long permit, NotificationResponse response) {
+        final Boolean failure = isGatewayFailure(response);
+        final State changed;
+        synchronized (this) {
+            final boolean probe = isCurrentProbe(permit);
+            if (probe) {
+                probesInFlight--;
+            }
+
+            if (failure == null) {
+                return;
+            }
+
+            switch (state) {
+                case HALF_OPEN:
+                    // Outcomes of notifications sent before this half-open period say
+                    // nothing about whether the gateway has recovered since
+                    if (!probe) {
+                        changed = null;
+                    } else if (failure) {
+                        changed = open();
+                    } else if (++probesSucceeded >= probes) {
+                        changed = close();
+                    } else {
+                        changed = null;
+                    }
+                    break;
+                case CLOSED:
+                    changed = record(failure) ? open() : null;
+                    break;
+                default:
+                    // Outcomes of notifications sent before the breaker opened
+                    changed = null;
+            }
+        }
+
+        notifyListeners(changed);
+    }
+
+    private boolean isCurrentProbe(long permit) {
+        return state == State.HALF_OPEN && permit == generation && probesInFlight > 0;
+    }
+
+    /**
+     * Classifies an outcome.
+     *
+     * @return Whether the gateway failed, or null if the outcome says nothing about it
+     */
+    private static Boolean isGatewayFailure(NotificationResponse response) {
+        if (response == null) {
+            return false;
+        }
+
+        final int status = response.getHttpStatusCode();
+        if (status == -1) {
+            return response.getCause() instanceof IOException ? Boolean.TRUE : null;
+        }
+        return status >= 500;
+    }
+
+    /**
+     * Counts an outcome in the rolling window.
+     *
+     * @return Whether the breaker should open
+     */
+    private boolean record(boolean failure) {
+        final long now = clock.getAsLong();
+        final long bucketStart = now - now % bucketMillis;
+        final int bucket = (int) ((now / bucketMillis) % BUCKETS);
+        if (bucketStarts[bucket] != bucketStart) {
+            bucketStarts[bucket] = bucketStart;
+            bucketSuccesses[bucket] = 0;
+            bucketFailures[bucket] = 0;
+        }
+
+        if (failure) {
+            bucketFailures[bucket]++;
+        } else {
+            bucketSuccesses[bucket]++;
+            return false;
+        }
+
+        final long windowStart = bucketStart - (BUCKETS - 1) * bucketMillis;
+        int total = 0;
+        int failures = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            if (bucketStarts[i] >= windowStart) {
+                total += bucketSuccesses[i] + bucketFailures[i];
+                failures += bucketFailures[i];
+            }
+        }
+        return total >= minimumRequests && failures >= failureRate * total;
+    }
+
+    private State open() {
+        state = State.OPEN;
+        openedAt = clock.getAsLong();
+        probesInFlight = 0;
+        opened++;
+        TIMER.schedule(this::probe, openMillis, TimeUnit.MILLISECONDS);
+        return state;
+    }
+
+    private State halfOpen() {
+        state = State.HALF_OPEN;
+        generation++;
+        probesInFlight = 0;
+        probesSucceeded = 0;
+        return state;
+    }
+
+    private State close() {
+        state = State.CLOSED;
+        for (int i = 0; i < BUCKETS; i++) {
+            bucketStarts[i] = 0;
+            bucketSuccesses[i] = 0;
+            bucketFailures[i] = 0;
+        }
+        return state;
+    }
+
+    /**
+     * Moves to half-open once the open duration is over, waking up anything waiting to send.
+     */
+    private void probe() {
+        final State changed;
+        synchronized (this) {
+            changed = state == State.OPEN && clock.getAsLong() - openedAt >= openMillis ? halfOpen() : null;
+        }
+        notifyListeners(changed);
+    }
+
+    private void notifyListeners(State changed) {
+        if (changed != null) {
+            for (Consumer<State> listener : listeners) {
+                listener.accept(changed);
+            }
+        }
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright (c) 2016, CleverTap
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * - Neither the name of CleverTap nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.clevertap.apns.clients;
+
+import com.clevertap.apns.ApnsClient;
+import com.clevertap.apns.Notification;
+import com.clevertap.apns.NotificationResponse;
+import com.clevertap.apns.NotificationResponseListener;
+import com.clevertap.apns.exceptions.CircuitOpenException;
+import okhttp3.OkHttpClient;
+
+/**
+ * Fails notifications right away, with a {@link CircuitOpenException}, while a
+ * {@link CircuitBreaker} is open, rather than sending them into a failing gateway.
+ * To hold notifications back instead, use the breaker with a {@link QueuedApnsClient}.
+ */
+public class CircuitBreakerApnsClient implements ApnsClient {
+    private final ApnsClient client;
+    private final CircuitBreaker breaker;
+
+    /**
+     * Creates a new client in front of an asynchronous client.
+     *
+     * @param client  An asynchronous client
+     * @param breaker The circuit breaker
+     */
+    public CircuitBreakerApnsClient(ApnsClient client, CircuitBreaker breaker) {
+        if (client.isSynchronous()) {
+            throw new IllegalArgumentException("An asynchronous client is required");
+        }
+
+        this.client = client;
+        this.breaker = breaker;
+    }
+
+    public CircuitBreaker getCircuitBreaker() {
+        return breaker;
+    }
+
+    @Override
+    public boolean isSynchronous() {
+        return false;
+    }
+
+    @Override
+    public void push(Notification notification, NotificationResponseListener listener) {
+        final long permit = breaker.tryAcquire();
+        if (permit == CircuitBreaker.NOT_PERMITTED) {
+            listener.onFailure(notification, new NotificationResponse(null, -1, null,
+                    new CircuitOpenException("The circuit breaker for the gateway is open")));
+            return;
+        }
+
+        final NotificationResponseListener recording = new NotificationResponseListener() {
+            @Override
+            public void onSuccess(Notification notification) {
+                breaker.onResult(permit, null);
+                listener.onSuccess(notification);
+            }
+
+            @Override
+            public void onFailure(Notification notification, NotificationResponse response) {
+                breaker.onResult(permit, response);
+                listener.onFailure(notification, response);
+            }
+        };
+
+        try {
+            client.push(notification, recording);
+        } catch (RuntimeException e) {
+            recording.onFailure(notification, new NotificationResponse(null, -1, null, e));
+        }
+    }
+
+    @Override
+    public NotificationResponse push(Notification notification) {
+        throw new UnsupportedOperationException("Synchronous requests are not supported by this client");
+    }
+
+    @Override
+    public OkHttpClient getHttpClient() {
+        return client.getHttpClient();
+    }
+}
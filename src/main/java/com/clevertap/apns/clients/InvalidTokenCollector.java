@@ -0,0 +1,280 @@
+/*
+ * Copyright (c) 2016, CleverTap
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * - Neither the name of CleverTap nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.clevertap.apns.clients;
+
+import com.clevertap.apns.ApnsClient;
+import com.clevertap.apns.InvalidToken;
+import com.clevertap.apns.Notification;
+import com.clevertap.apns.NotificationResponse;
+import com.clevertap.apns.NotificationResponseListener;
+import com.clevertap.apns.enums.FailureReason;
+import okhttp3.OkHttpClient;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects the device tokens APNs reports as invalid, and hands them to a {@link Sink} in
+ * batches, so that they can be removed with a few bulk operations rather than one at a time.
+ * <p>
+ * A token is invalid when APNs answers with 410 (the token is no longer active for the
+ * topic), or with 400 and {@link FailureReason#BadDeviceToken}. A batch is handed over once
+ * it holds a given number of tokens, or when the flush interval elapses, whichever comes
+ * first. Batches are usually handed over on a dedicated thread, but also on the thread
+ * calling {@link #flush()}, and after closing, on the thread receiving the response. Either
+ * way, the sink is called by one thread at a time. Listeners are still told about each
+ * failure, as usual. Exceptions thrown by the sink are passed to the flushing thread's
+ * uncaught exception handler, and don't stop later batches.
+ * <p>
+ * Each token carries the topic its notification was sent to: the notification's own, or
+ * the client's default topic.
+ */
+public class InvalidTokenCollector implements ApnsClient, Closeable {
+    private static final String TIMESTAMP_KEY = "\"timestamp\"";
+
+    private final ApnsClient client;
+    private final Sink sink;
+    private final Object sinkLock = new Object();
+    private final String defaultTopic;
+    private final int batchSize;
+    private final ScheduledExecutorService flusher;
+
+    private List<InvalidToken> pending = new ArrayList<>();
+    private long collected;
+    private boolean closed;
+
+    /**
+     * Receives batches of invalid tokens.
+     */
+    public interface Sink {
+        /**
+         * Handles a batch of invalid tokens.
+         *
+         * @param tokens The invalid tokens, in the order they were reported
+         */
+        void onInvalidTokens(List<InvalidToken> tokens);
+    }
+
+    /**
+     * Creates a new collector in front of an asynchronous client.
+     *
+     * @param client        An asynchronous client
+     * @param sink          The sink receiving batches of invalid tokens
+     * @param defaultTopic  The topic of notifications which don't have one, or null
+     * @param batchSize     The number of tokens which triggers a flush
+     * @param flushInterval The longest a token waits before being flushed, in milliseconds
+     */
+    public InvalidTokenCollector(ApnsClient client, Sink sink, String defaultTopic, int batchSize,
+                                 long flushInterval) {
+        if (client.isSynchronous()) {
+            throw new IllegalArgumentException("An asynchronous client is required");
+        }
+
+        if (batchSize <= 0 || flushInterval <= 0) {
+            throw new IllegalArgumentException("Invalid batch size or flush interval");
+        }
+
+        this.client = client;
+        this.sink = sink;
+        this.defaultTopic = defaultTopic;
+        this.batchSize = batchSize;
+        this.flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            final Thread thread = new Thread(r, "apns-invalid-token-flusher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.flusher.scheduleWithFixedDelay(this::flush, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+    }
+
+    public InvalidTokenCollector(ApnsClient client, Sink sink, int batchSize, long flushInterval) {
+        this(client, sink, null, batchSize, flushInterval);
+    }
+
+    /**
+     * Returns the number of invalid tokens collected so far.
+     *
+     * @return The number of invalid tokens
+     */
+    public synchronized long getCollectedCount() {
+        return collected;
+    }
+
+    @Override
+    public boolean isSynchronous() {
+        return false;
+    }
+
+    @Override
+    public void push(Notification notification, NotificationResponseListener listener) {
+        client.push(notification, new NotificationResponseListener() {
+            @Override
+            public void onSuccess(Notification notification) {
+                listener.onSuccess(notification);
+            }
+
+            @Override
+            public void onFailure(Notification notification, NotificationResponse response) {
+                final InvalidToken token = invalidToken(notification, response, defaultTopic);
+                if (token != null) {
+                    collect(token);
+                }
+                listener.onFailure(notification, response);
+            }
+        });
+    }
+
+    @Override
+    public NotificationResponse push(Notification notification) {
+        throw new UnsupportedOperationException("Synchronous requests are not supported by this client");
+    }
+
+    @Override
+    public OkHttpClient getHttpClient() {
+        return client.getHttpClient();
+    }
+
+    /**
+     * Hands the tokens collected so far to the sink, on the calling thread (once any batch
+     * another thread is handing over is done).
+     */
+    public void flush() {
+        final List<InvalidToken> batch;
+        synchronized (this) {
+            if (pending.isEmpty()) {
+                return;
+            }
+            batch = pending;
+            pending = new ArrayList<>();
+        }
+        deliver(batch);
+    }
+
+    /**
+     * Stops the flushing thread, and hands the tokens collected so far to the sink.
+     * Tokens reported afterwards are handed over one at a time, as they arrive.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            closed = true;
+        }
+
+        flusher.shutdown();
+        try {
+            flusher.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+    }
+
+    private void collect(InvalidToken token) {
+        final List<InvalidToken> batch;
+        final boolean inline;
+        synchronized (this) {
+            collected++;
+            pending.add(token);
+            if (pending.size() < batchSize && !closed) {
+                return;
+            }
+            batch = pending;
+            pending = new ArrayList<>();
+            inline = closed;
+        }
+
+        if (!inline) {
+            try {
+                flusher.execute(() -> deliver(batch));
+                return;
+            } catch (RejectedExecutionException e) {
+                // Closed in the meantime
+            }
+        }
+        deliver(batch);
+    }
+
+    private void deliver(List<InvalidToken> batch) {
+        try {
+            synchronized (sinkLock) {
+                sink.onInvalidTokens(batch);
+            }
+        } catch (RuntimeException e) {
+            // A failing sink must not stop later batches, but mustn't go unnoticed either
+            final Thread thread = Thread.currentThread();
+            thread.getUncaughtExceptionHandler().uncaughtException(thread, e);
+        }
+    }
+
+    static InvalidToken invalidToken(Notification notification, NotificationResponse response,
+                                     String defaultTopic) {
+        final int status = response.getHttpStatusCode();
+        if (status != 410 && status != 400) {
+            return null;
+        }
+
+        final String body = response.getResponseBody();
+        final FailureReason reason = FailureReason.parse(body);
+        if (status == 400 && reason != FailureReason.BadDeviceToken) {
+            return null;
+        }
+
+        final String topic = notification.getTopic() != null ? notification.getTopic() : defaultTopic;
+        return new InvalidToken(notification.getToken(), topic, parseTimestamp(body), reason);
+    }
+
+    /**
+     * Finds the timestamp in a response body, such as
+     * <code>{"reason":"Unregistered","timestamp":1600000000000}</code>.
+     */
+    private static long parseTimestamp(String body) {
+        final int key = body == null ? -1 : body.indexOf(TIMESTAMP_KEY);
+        if (key < 0) {
+            return -1;
+        }
+
+        int i = body.indexOf(':', key + TIMESTAMP_KEY.length()) + 1;
+        while (i > 0 && i < body.length() && body.charAt(i) == ' ') {
+            i++;
+        }
+
+        long timestamp = 0;
+        final int start = i;
+        for (; i > 0 && i < body.length() && body.charAt(i) >= '0' && body.charAt(i) <= '9'; i++) {
+            timestamp = timestamp * 10 + (body.charAt(i) - '0');
+        }
+        return i > start ? timestamp : -1;
+    }
+}
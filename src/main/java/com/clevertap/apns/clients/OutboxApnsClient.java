@@ -0,0 +1,312 @@
+/*
+ * Copyright (c) 2016, CleverTap
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * - Neither the name of CleverTap nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.clevertap.apns.clients;
+
+import com.clevertap.apns.ApnsClient;
+import com.clevertap.apns.Notification;
+import com.clevertap.apns.NotificationCodec;
+import com.clevertap.apns.NotificationResponse;
+import com.clevertap.apns.NotificationResponseListener;
+import com.clevertap.apns.internal.SegmentLog;
+import okhttp3.OkHttpClient;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Records notifications in a durable, memory-mapped outbox before sending them through
+ * an asynchronous client, so that notifications which were still queued when the JVM
+ * died can be sent again.
+ * <p>
+ * Notifications are appended to the outbox as they are pushed, and are handed to the
+ * underlying client only once they have been written to the storage device. Appends
+ * are committed in groups: while one group is being written, the next one accumulates,
+ * so that the cost of writing to the device is shared by all the notifications in a group.
+ * <p>
+ * A notification is acknowledged once the listener has been told its outcome. On restart,
+ * the notifications which were never acknowledged can be sent again with
+ * {@link #replayUnacknowledged(NotificationResponseListener)}.
+ * <p>
+ * If the outbox can't be written to the storage device, the notifications waiting for it
+ * fail (they stay in the outbox, to be replayed after a restart), and the outbox rejects
+ * any further ones.
+ */
+public class OutboxApnsClient implements ApnsClient, Closeable {
+    /**
+     * The default size of each outbox segment file, in bytes.
+     */
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    private final ApnsClient client;
+    private final SegmentLog log;
+    private final Thread committer;
+    private final Object lock = new Object();
+
+    private List<Entry> group = new ArrayList<>();
+    private boolean closed;
+    private RuntimeException failure;
+
+    private static final class Entry {
+        private final Notification notification;
+        private final NotificationResponseListener listener;
+        private final long handle;
+
+        Entry(Notification notification, NotificationResponseListener listener, long handle) {
+            this.notification = notification;
+            this.listener = listener;
+            this.handle = handle;
+        }
+    }
+
+    /**
+     * Creates a new outbox in front of an asynchronous client.
+     *
+     * @param client      An asynchronous client
+     * @param directory   The directory holding the outbox (created if missing), which only
+     *                    one outbox at a time may use
+     * @param segmentSize The size of each outbox segment file, in bytes
+     * @throws IOException if the outbox can't be opened, or another outbox is using the directory
+     */
+    public OutboxApnsClient(ApnsClient client, File directory, int segmentSize) throws IOException {
+        if (client.isSynchronous()) {
+            throw new IllegalArgumentException("An asynchronous client is required");
+        }
+
+        this.client = client;
+        this.log = new SegmentLog(directory, segmentSize);
+        this.committer = new Thread(this::commitLoop, "apns-outbox-committer");
+        this.committer.setDaemon(true);
+        this.committer.start();
+    }
+
+    public OutboxApnsClient(ApnsClient client, File directory) throws IOException {
+        this(client, directory, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * Sends the notifications left unacknowledged in the outbox by a previous run.
+     * Records which can't be decoded are dropped, and reported to the calling thread's
+     * uncaught exception handler.
+     *
+     * @param listener The listener to be called for each of these notifications
+     * @return The number of notifications being sent again
+     */
+    public int replayUnacknowledged(NotificationResponseListener listener) {
+        final List<SegmentLog.Record> records = log.takeRecovered();
+        final List<Entry> replayed = new ArrayList<>(records.size());
+        for (SegmentLog.Record record : records) {
+            try {
+                replayed.add(new Entry(NotificationCodec.decode(record.getData()), listener, record.getHandle()));
+            } catch (IllegalArgumentException e) {
+                log.acknowledge(record.getHandle());
+                final Thread thread = Thread.currentThread();
+                thread.getUncaughtExceptionHandler().uncaughtException(thread, e);
+            }
+        }
+
+        synchronized (lock) {
+            checkOpen();
+            group.addAll(replayed);
+            lock.notifyAll();
+        }
+
+        return replayed.size();
+    }
+
+    /**
+     * Returns the number of notifications in the outbox which haven't been acknowledged.
+     *
+     * @return The number of unacknowledged notifications
+     */
+    public int getUnacknowledgedCount() {
+        return log.pending();
+    }
+
+    @Override
+    public boolean isSynchronous() {
+        return false;
+    }
+
+    @Override
+    public void push(Notification notification, NotificationResponseListener listener) {
+        final byte[] record = NotificationCodec.encode(notification);
+
+        synchronized (lock) {
+            checkOpen();
+            try {
+                group.add(new Entry(notification, listener, log.append(record)));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            lock.notifyAll();
+        }
+    }
+
+    @Override
+    public NotificationResponse push(Notification notification) {
+        throw new UnsupportedOperationException("Synchronous requests are not supported by this client");
+    }
+
+    @Override
+    public OkHttpClient getHttpClient() {
+        return client.getHttpClient();
+    }
+
+    /**
+     * Sends the notifications already in the outbox's queue, and closes the outbox.
+     * Notifications still in flight are acknowledged as their responses arrive.
+     */
+    @Override
+    public void close() {
+        synchronized (lock) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            lock.notifyAll();
+        }
+
+        try {
+            committer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        log.close();
+    }
+
+    private void checkOpen() {
+        if (failure != null) {
+            throw new IllegalStateException("The outbox has failed", failure);
+        }
+        if (closed) {
+            throw new IllegalStateException("The outbox is closed");
+        }
+    }
+
+    /**
+     * Writes the appended notifications to the storage device.
+     */
+    void force() {
+        log.force();
+    }
+
+    private void commitLoop() {
+        while (true) {
+            final List<Entry> committed;
+            synchronized (lock) {
+                while (group.isEmpty() && !closed) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+
+                if (group.isEmpty()) {
+                    return;
+                }
+
+                committed = group;
+                group = new ArrayList<>();
+            }
+
+            try {
+                force();
+            } catch (RuntimeException e) {
+                fail(committed, e);
+                return;
+            }
+
+            for (Entry entry : committed) {
+                final AcknowledgingListener listener = new AcknowledgingListener(entry);
+                try {
+                    client.push(entry.notification, listener);
+                } catch (RuntimeException e) {
+                    notifyFailure(listener, entry.notification, e);
+                }
+            }
+        }
+    }
+
+    private void fail(List<Entry> committed, RuntimeException cause) {
+        final List<Entry> failed = new ArrayList<>(committed);
+        synchronized (lock) {
+            failure = cause;
+            failed.addAll(group);
+            group = new ArrayList<>();
+        }
+
+        for (Entry entry : failed) {
+            notifyFailure(entry.listener, entry.notification, cause);
+        }
+    }
+
+    private static void notifyFailure(NotificationResponseListener listener, Notification notification,
+                                      RuntimeException cause) {
+        try {
+            listener.onFailure(notification, new NotificationResponse(null, -1, null, cause));
+        } catch (RuntimeException e) {
+            // Keep committing, but don't hide a broken listener
+            final Thread thread = Thread.currentThread();
+            thread.getUncaughtExceptionHandler().uncaughtException(thread, e);
+        }
+    }
+
+    private class AcknowledgingListener implements NotificationResponseListener {
+        private final Entry entry;
+
+        AcknowledgingListener(Entry entry) {
+            this.entry = entry;
+        }
+
+        @Override
+        public void onSuccess(Notification notification) {
+            try {
+                entry.listener.onSuccess(notification);
+            } finally {
+                log.acknowledge(entry.handle);
+            }
+        }
+
+        @Override
+        public void onFailure(Notification notification, NotificationResponse response) {
+            try {
+                entry.listener.onFailure(notification, response);
+            } finally {
+                log.acknowledge(entry.handle);
+            }
+        }
+    }
+}
@@ -0,0 +1,414 @@
+/*
+ * Copyright (c) 2016, CleverTap
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * - Neither the name of CleverTap nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.clevertap.apns.clients;
+
+import com.clevertap.apns.ApnsClient;
+import com.clevertap.apns.Notification;
+import com.clevertap.apns.NotificationResponse;
+import com.clevertap.apns.NotificationResponseListener;
+import okhttp3.OkHttpClient;
+
+import java.io.Closeable;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Hands the outcomes of notifications over to dedicated handler threads, so that slow
+ * listeners (writing to a database, say) never hold up the threads reading responses from
+ * the gateway, which are shared by every stream of a connection.
+ * <p>
+ * Each handler thread consumes a ring buffer of pre-allocated slots, which the threads
+ * receiving responses publish outcomes into without locking. Outcomes are delivered in
+ * batches of whatever has been published since the last one: first to the
+ * {@link BatchHandler}, if there is one, so that they can be recorded in bulk, and then
+ * to each notification's listener. When a ring is full, the thread publishing into it
+ * waits for its handler to catch up. Outcomes published by a handler thread itself (when a
+ * listener pushes again and the underlying client fails at once) are delivered right away.
+ * <p>
+ * Exceptions thrown by a handler or a listener don't stop the pipeline: they are passed to
+ * the delivering thread's uncaught exception handler.
+ */
+public class PipelinedApnsClient implements ApnsClient, Closeable {
+    /**
+     * The default number of slots in each handler thread's ring buffer.
+     */
+    public static final int DEFAULT_BUFFER_SIZE = 4096;
+
+    // Idle handlers yield this many times before parking, in case more outcomes follow closely
+    private static final int IDLE_SPINS = 64;
+    private static final long FULL_PARK_NANOS = 10_000;
+
+    private final ApnsClient client;
+    private final BatchHandler handler;
+    private final Ring[] rings;
+    private final AtomicInteger nextRing = new AtomicInteger();
+    private volatile boolean closed;
+
+    /**
+     * Receives the outcomes of notifications in batches, on a handler thread.
+     */
+    public interface BatchHandler {
+        /**
+         * Handles a batch of outcomes. The batch may only be used until this method returns.
+         *
+         * @param batch The batch
+         */
+        void onBatch(Batch batch);
+    }
+
+    /**
+     * A view over a run of outcomes in a ring buffer.
+     */
+    public static final class Batch {
+        private final Slot[] slots;
+        private final int mask;
+        private long start;
+        private int size;
+
+        private Batch(Slot[] slots) {
+            this.slots = slots;
+            this.mask = slots.length - 1;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public Notification getNotification(int index) {
+            return slot(index).notification;
+        }
+
+        /**
+         * Returns the response for a failed notification.
+         *
+         * @param index The outcome's index in the batch
+         * @return The response (null if the notification was accepted)
+         */
+        public NotificationResponse getResponse(int index) {
+            return slot(index).response;
+        }
+
+        public boolean isSuccess(int index) {
+            return slot(index).response == null;
+        }
+
+        private Slot slot(int index) {
+            if (index < 0 || index >= size) {
+                throw new IndexOutOfBoundsException("Index: " + index + ", size: " + size);
+            }
+            return slots[(int) (start + index) & mask];
+        }
+    }
+
+    private static final class Slot {
+        private volatile long sequence = -1;
+        private Notification notification;
+        private NotificationResponseListener listener;
+        private NotificationResponse response;
+    }
+
+    /**
+     * Creates a new pipeline in front of an asynchronous client.
+     *
+     * @param client         An asynchronous client
+     * @param handlerThreads The number of handler threads
+     * @param bufferSize     The number of slots in each handler thread's ring buffer,
+     *                       rounded up to a power of two
+     * @param handler        The handler receiving each batch of outcomes, or null
+     */
+    public PipelinedApnsClient(ApnsClient client, int handlerThreads, int bufferSize, BatchHandler handler) {
+        if (client.isSynchronous()) {
+            throw new IllegalArgumentException("An asynchronous client is required");
+        }
+
+        if (handlerThreads <= 0 || bufferSize <= 0 || bufferSize > 1 << 30) {
+            throw new IllegalArgumentException("Invalid handler threads or buffer size");
+        }
+
+        this.client = client;
+        this.handler = handler;
+        this.rings = new Ring[handlerThreads];
+
+        final int capacity = bufferSize == 1 ? 1 : Integer.highestOneBit(bufferSize - 1) << 1;
+        for (int i = 0; i < handlerThreads; i++) {
+            rings[i] = new Ring(capacity, "apns-result-handler-" + i);
+        }
+        for (Ring ring : rings) {
+            ring.thread.start();
+        }
+    }
+
+    public PipelinedApnsClient(ApnsClient client, int handlerThreads, int bufferSize) {
+        this(client, handlerThreads, bufferSize, null);
+    }
+
+    /**
+     * Returns the number of outcomes published but not yet delivered.
+     *
+     * @return The number of outcomes waiting for a handler thread
+     */
+    public long getBacklog() {
+        long backlog = 0;
+        for (Ring ring : rings) {
+            backlog += ring.claimed.get() - ring.consumed;
+        }
+        return backlog;
+    }
+
+    @Override
+    public boolean isSynchronous() {
+        return false;
+    }
+
+    /**
+     * Sends a notification through the underlying client. The listener (which may be null
+     * when outcomes are handled in batches) is called on a handler thread.
+     */
+    @Override
+    public void push(Notification notification, NotificationResponseListener listener) {
+        if (closed) {
+            throw new IllegalStateException("The pipeline is closed");
+        }
+
+        final Ring ring = rings[(nextRing.getAndIncrement() & Integer.MAX_VALUE) % rings.length];
+        client.push(notification, new NotificationResponseListener() {
+            @Override
+            public void onSuccess(Notification notification) {
+                ring.publish(notification, listener, null);
+            }
+
+            @Override
+            public void onFailure(Notification notification, NotificationResponse response) {
+                ring.publish(notification, listener, response);
+            }
+        });
+    }
+
+    @Override
+    public NotificationResponse push(Notification notification) {
+        throw new UnsupportedOperationException("Synchronous requests are not supported by this client");
+    }
+
+    @Override
+    public OkHttpClient getHttpClient() {
+        return client.getHttpClient();
+    }
+
+    /**
+     * Delivers the outcomes already published, and stops the handler threads. Outcomes of
+     * notifications still in flight are delivered on the threads that receive them.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        for (Ring ring : rings) {
+            LockSupport.unpark(ring.thread);
+        }
+
+        for (Ring ring : rings) {
+            try {
+                ring.thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * A ring buffer with many publishers and a single handler thread. Publishers claim a
+     * sequence, fill its slot and then publish it by setting the slot's sequence; the
+     * handler delivers contiguous runs of published slots, then frees them by advancing
+     * the consumed sequence.
+     */
+    private final class Ring implements Runnable {
+        private final Slot[] slots;
+        private final int mask;
+        private final Batch batch;
+        private final Thread thread;
+        private final AtomicLong claimed = new AtomicLong(-1);
+        private volatile long consumed = -1;
+        private volatile boolean sleeping;
+
+        Ring(int capacity, String name) {
+            slots = new Slot[capacity];
+            for (int i = 0; i < capacity; i++) {
+                slots[i] = new Slot();
+            }
+            mask = capacity - 1;
+            batch = new Batch(slots);
+            thread = new Thread(this, name);
+            thread.setDaemon(true);
+        }
+
+        void publish(Notification notification, NotificationResponseListener listener,
+                     NotificationResponse response) {
+            if (Thread.currentThread() == thread) {
+                // A listener pushed again, and the underlying client failed synchronously. As the
+                // only consumer of this ring, the handler would wait for room (or for itself to
+                // stop) forever
+                deliverInline(notification, listener, response);
+                return;
+            }
+
+            final long sequence = claimed.incrementAndGet();
+            while (sequence - consumed > slots.length) {
+                if (closed && !thread.isAlive()) {
+                    deliverAfterClose();
+                } else {
+                    LockSupport.parkNanos(FULL_PARK_NANOS);
+                }
+            }
+
+            final Slot slot = slots[(int) sequence & mask];
+            slot.notification = notification;
+            slot.listener = listener;
+            slot.response = response;
+            slot.sequence = sequence;
+
+            if (sleeping) {
+                LockSupport.unpark(thread);
+            }
+
+            if (closed) {
+                // The handler thread may have stopped before this outcome was published
+                try {
+                    thread.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                deliverAfterClose();
+            }
+        }
+
+        @Override
+        public void run() {
+            long next = 0;
+            int idle = 0;
+
+            while (true) {
+                final int available = available(next);
+                if (available > 0) {
+                    deliver(next, available);
+                    next += available;
+                    consumed = next - 1;
+                    idle = 0;
+                } else if (closed && claimed.get() < next) {
+                    return;
+                } else if (++idle < IDLE_SPINS) {
+                    Thread.yield();
+                } else {
+                    sleeping = true;
+                    if (slots[(int) next & mask].sequence != next && !closed) {
+                        LockSupport.park(this);
+                    } else if (closed) {
+                        // An outcome was claimed, but isn't published yet
+                        LockSupport.parkNanos(this, FULL_PARK_NANOS);
+                    }
+                    sleeping = false;
+                }
+            }
+        }
+
+        private synchronized void deliverAfterClose() {
+            final long next = consumed + 1;
+            final int available = available(next);
+            if (available > 0) {
+                deliver(next, available);
+                consumed = next + available - 1;
+            }
+        }
+
+        private void deliverInline(Notification notification, NotificationResponseListener listener,
+                                   NotificationResponse response) {
+            final Slot slot = new Slot();
+            slot.notification = notification;
+            slot.listener = listener;
+            slot.response = response;
+            final Slot[] single = {slot};
+            deliver(single, new Batch(single), 0, 1);
+        }
+
+        private int available(long next) {
+            int available = 0;
+            while (available < slots.length && slots[(int) (next + available) & mask].sequence == next + available) {
+                available++;
+            }
+            return available;
+        }
+
+        private void deliver(long start, int size) {
+            deliver(slots, batch, start, size);
+        }
+
+        private void deliver(Slot[] slots, Batch batch, long start, int size) {
+            final int mask = slots.length - 1;
+            if (handler != null) {
+                batch.start = start;
+                batch.size = size;
+                try {
+                    handler.onBatch(batch);
+                } catch (RuntimeException e) {
+                    // A failing handler must not stop the pipeline, but mustn't go unnoticed either
+                    reportUncaught(e);
+                }
+                batch.size = 0;
+            }
+
+            for (int i = 0; i < size; i++) {
+                final Slot slot = slots[(int) (start + i) & mask];
+                final NotificationResponseListener listener = slot.listener;
+                if (listener != null) {
+                    try {
+                        if (slot.response == null) {
+                            listener.onSuccess(slot.notification);
+                        } else {
+                            listener.onFailure(slot.notification, slot.response);
+                        }
+                    } catch (RuntimeException e) {
+                        reportUncaught(e);
+                    }
+                }
+
+                slot.notification = null;
+                slot.listener = null;
+                slot.response = null;
+            }
+        }
+
+        private void reportUncaught(RuntimeException e) {
+            final Thread thread = Thread.currentThread();
+            thread.getUncaughtExceptionHandler().uncaughtException(thread, e);
+        }
+    }
+}
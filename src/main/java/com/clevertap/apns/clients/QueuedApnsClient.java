@@ -0,0 +1,939 @@
+/*
+ * Copyright (c) 2016, CleverTap
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * - Neither the name of CleverTap nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package com.clevertap.apns.clients;
+
+import com.clevertap.apns.ApnsClient;
+import com.clevertap.apns.Notification;
+import com.clevertap.apns.NotificationCodec;
+import com.clevertap.apns.NotificationResponse;
+import com.clevertap.apns.NotificationResponseListener;
+import com.clevertap.apns.exceptions.NotificationCoalescedException;
+import com.clevertap.apns.exceptions.NotificationExpiredException;
+import com.clevertap.apns.internal.MappedQueue;
+import okhttp3.OkHttpClient;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+
+/**
+ * Limits the number of notifications in flight on an asynchronous client, and queues
+ * the rest until a response frees up a slot.
+ * <p>
+ * Notifications are queued by their apns-priority: those with priority 10 (including
+ * those without a priority, which APNs treats as 10) are sent before those with priority 5.
+ * So that a steady stream of priority 10 notifications doesn't starve the others, one
+ * priority 5 notification is let through after every {@link #MAX_CONSECUTIVE_IMMEDIATE}.
+ * <p>
+ * Within a priority, each tenant (by default, each topic) has its own queue, and the
+ * tenants take turns using deficit round robin: on its turn, a tenant sends as many
+ * notifications as its weight (1 by default). A tenant sending a large campaign thus
+ * doesn't hold up the others. Tenants can also be capped to a number of notifications
+ * in flight, below the client's overall limit.
+ * <p>
+ * Optionally, once the number of notifications queued in memory reaches a high-water mark,
+ * further notifications are spilled to memory-mapped files and pulled back (in order) as the
+ * in-memory queues drain, keeping the heap flat while the gateway is slow. Listeners
+ * aren't serialized: spilled notifications refer to them by an identifier, so a listener
+ * shared by many notifications is held in memory only once.
+ * <p>
+ * Notifications are checked as they leave the queue: those whose apns-expiration or
+ * {@link Notification#getDeadline() deadline} has passed (or is within the expiration
+ * margin) are failed locally with a {@link NotificationExpiredException}, instead of
+ * taking up a slot. An apns-expiration of zero never expires.
+ * <p>
+ * Optionally, a notification can replace a queued one with the same device token, topic
+ * and collapse ID, taking its place in the queue if it has the same priority and tenant
+ * (and joining the back of its own queue otherwise). Only the newer one is sent; the older
+ * one is failed locally with a {@link NotificationCoalescedException}. Notifications which
+ * have been spilled to disk aren't replaced.
+ * <p>
+ * Optionally, a {@link CircuitBreaker} holds notifications in the queue while the gateway
+ * is failing, and lets them out a few at a time as it probes for recovery.
+ */
+public class QueuedApnsClient implements ApnsClient {
+    /**
+     * The size of each spill segment file, in bytes.
+     */
+    public static final int SPILL_SEGMENT_SIZE = 16 * 1024 * 1024;
+
+    /**
+     * The number of priority 10 notifications sent in a row while priority 5 ones are
+     * waiting, before one of those is sent.
+     */
+    public static final int MAX_CONSECUTIVE_IMMEDIATE = 10;
+
+    private final ApnsClient client;
+    private final int maxInFlight;
+    private final int highWaterMark;
+    private final MappedQueue.Directory spillDirectory;
+    private final LongSupplier clock;
+    private final LongSupplier ticker;
+    private final Level immediate = new Level("immediate");
+    private final Level powerConsideration = new Level("power-consideration");
+    private final SpilledListeners spilledListeners = new SpilledListeners();
+
+    private final Map<String, Tenant> tenants = new HashMap<>();
+    private final Map<String, Integer> tenantWeights = new HashMap<>();
+    private final Map<String, Integer> tenantMaxInFlight = new HashMap<>();
+    private Function<Notification, String> tenantKey = Notification::getTopic;
+    private int nextTenantId;
+
+    private final AtomicInteger wip = new AtomicInteger();
+    private int inFlight;
+    private int inMemory;
+    private int consecutiveImmediate;
+    private int expired;
+    private volatile long expirationMargin;
+    private boolean coalescing;
+    private final Map<String, Entry> coalescable = new HashMap<>();
+    private int coalesced;
+    private volatile CircuitBreaker circuitBreaker;
+
+    private static final class Entry {
+        private Notification notification;
+        private NotificationResponseListener listener;
+        private final long enqueuedAt;
+        private final Tenant tenant;
+        private String coalescingKey;
+
+        Entry(Notification notification, NotificationResponseListener listener, long enqueuedAt, Tenant tenant) {
+            this.notification = notification;
+            this.listener = listener;
+            this.enqueuedAt = enqueuedAt;
+            this.tenant = tenant;
+        }
+    }
+
+    /**
+     * Creates a client which queues notifications in memory.
+     *
+     * @param client      An asynchronous client
+     * @param maxInFlight The maximum number of notifications awaiting a response
+     */
+    public QueuedApnsClient(ApnsClient client, int maxInFlight) {
+        this(client, maxInFlight, System::nanoTime);
+    }
+
+    QueuedApnsClient(ApnsClient client, int maxInFlight, LongSupplier ticker) {
+        this(client, maxInFlight, Integer.MAX_VALUE, null, System::currentTimeMillis, ticker);
+    }
+
+    /**
+     * Creates a client which spills queued notifications to disk beyond a high-water mark.
+     *
+     * @param client         An asynchronous client
+     * @param maxInFlight    The maximum number of notifications awaiting a response
+     * @param spillDirectory The directory for the spill files (created if missing). Each client
+     *                       spills into a subdirectory of its own, so clients may share it
+     * @param highWaterMark  The maximum number of queued notifications held in memory
+     * @throws IOException if the spill directory can't be created
+     */
+    public QueuedApnsClient(ApnsClient client, int maxInFlight, File spillDirectory, int highWaterMark)
+            throws IOException {
+        this(client, maxInFlight, spillDirectory, highWaterMark, System::currentTimeMillis, System::nanoTime);
+    }
+
+    /**
+     * Creates a client which spills queued notifications to disk, and reads the time from
+     * the given clocks.
+     *
+     * @param clock  The wall clock notifications expire by, in milliseconds since the epoch
+     * @param ticker The monotonic clock queue waits are measured with, in nanoseconds
+     */
+    QueuedApnsClient(ApnsClient client, int maxInFlight, File spillDirectory, int highWaterMark,
+                     LongSupplier clock, LongSupplier ticker) throws IOException {
+        this(client, maxInFlight, highWaterMark, MappedQueue.claimDirectory(spillDirectory), clock, ticker);
+    }
+
+    private QueuedApnsClient(ApnsClient client, int maxInFlight, int highWaterMark,
+                             MappedQueue.Directory spillDirectory, LongSupplier clock, LongSupplier ticker) {
+        if (client.isSynchronous()) {
+            throw new IllegalArgumentException("An asynchronous client is required");
+        }
+
+        if (maxInFlight <= 0) {
+            throw new IllegalArgumentException("maxInFlight must be positive: " + maxInFlight);
+        }
+
+        if (highWaterMark <= 0) {
+            throw new IllegalArgumentException("highWaterMark must be positive: " + highWaterMark);
+        }
+
+        this.client = client;
+        this.maxInFlight = maxInFlight;
+        this.highWaterMark = highWaterMark;
+        this.spillDirectory = spillDirectory;
+        this.clock = clock;
+        this.ticker = ticker;
+    }
+
+    /**
+     * Returns the number of notifications waiting for a free slot.
+     *
+     * @return The number of queued notifications, in memory and spilled
+     */
+    public synchronized int getQueuedCount() {
+        return immediate.size + powerConsideration.size;
+    }
+
+    /**
+     * Returns the number of notifications of a priority waiting for a free slot.
+     *
+     * @param priority The priority (null is the same as {@link Notification.Priority#IMMEDIATE})
+     * @return The number of queued notifications, in memory and spilled
+     */
+    public synchronized int getQueuedCount(Notification.Priority priority) {
+        return level(priority).size;
+    }
+
+    /**
+     * Returns the number of notifications of a tenant waiting for a free slot.
+     *
+     * @param tenant The tenant's key
+     * @return The number of queued notifications, in memory and spilled
+     */
+    public synchronized int getQueuedCount(String tenant) {
+        final Tenant t = tenants.get(tenant == null ? "" : tenant);
+        return t == null ? 0 : t.queued;
+    }
+
+    /**
+     * Returns the number of queued notifications that have been spilled to disk.
+     *
+     * @return The number of spilled notifications
+     */
+    public synchronized int getSpilledCount() {
+        return immediate.size + powerConsideration.size - inMemory;
+    }
+
+    /**
+     * Returns how long notifications of a priority have waited in the queue so far.
+     *
+     * @param priority The priority (null is the same as {@link Notification.Priority#IMMEDIATE})
+     * @return A snapshot of the time spent queued by the notifications dequeued so far
+     */
+    public synchronized QueueWait getQueueWait(Notification.Priority priority) {
+        final Level level = level(priority);
+        return new QueueWait(level.dequeued, level.totalWait, level.maxWait);
+    }
+
+    /**
+     * Returns the number of notifications dropped because they expired while queued.
+     *
+     * @return The number of expired notifications
+     */
+    public synchronized int getExpiredCount() {
+        return expired;
+    }
+
+    /**
+     * Returns the number of notifications replaced by newer ones while queued.
+     *
+     * @return The number of coalesced notifications
+     */
+    public synchronized int getCoalescedCount() {
+        return coalesced;
+    }
+
+    /**
+     * Sets whether notifications replace queued ones with the same device token, topic
+     * and collapse ID. Disabled by default.
+     *
+     * @param coalescing Whether to coalesce notifications
+     */
+    public synchronized void setCoalescing(boolean coalescing) {
+        this.coalescing = coalescing;
+        if (!coalescing) {
+            for (Entry entry : coalescable.values()) {
+                entry.coalescingKey = null;
+            }
+            coalescable.clear();
+        }
+    }
+
+    /**
+     * Sets a circuit breaker, which keeps notifications queued while it's open. Should be
+     * set before any notification is pushed.
+     *
+     * @param circuitBreaker The circuit breaker
+     */
+    public void setCircuitBreaker(CircuitBreaker circuitBreaker) {
+        circuitBreaker.addStateListener(state -> {
+            if (state != CircuitBreaker.State.OPEN) {
+                drain();
+            }
+        });
+        this.circuitBreaker = circuitBreaker;
+    }
+
+    /**
+     * Sets how long before their expiration or deadline queued notifications are dropped,
+     * so that notifications which would expire in transit aren't sent. Defaults to zero.
+     *
+     * @param expirationMargin The margin, in milliseconds
+     */
+    public void setExpirationMargin(long expirationMargin) {
+        if (expirationMargin < 0) {
+            throw new IllegalArgumentException("expirationMargin must not be negative: " + expirationMargin);
+        }
+        this.expirationMargin = expirationMargin;
+    }
+
+    /**
+     * Sets how notifications are assigned to tenants, which are scheduled fairly against
+     * each other. Defaults to the notification's topic. Should be set before any
+     * notification is pushed.
+     *
+     * @param tenantKey Returns the tenant's key for a notification (null is a tenant too)
+     */
+    public synchronized void setTenantKey(Function<Notification, String> tenantKey) {
+        if (tenantKey == null) {
+            throw new IllegalArgumentException("tenantKey must not be null");
+        }
+        this.tenantKey = tenantKey;
+    }
+
+    /**
+     * Sets a tenant's weight: the number of notifications it sends on each of its turns.
+     *
+     * @param tenant The tenant's key
+     * @param weight The weight (1 by default)
+     */
+    public synchronized void setTenantWeight(String tenant, int weight) {
+        if (weight <= 0) {
+            throw new IllegalArgumentException("weight must be positive: " + weight);
+        }
+
+        final String key = tenant == null ? "" : tenant;
+        tenantWeights.put(key, weight);
+        final Tenant t = tenants.get(key);
+        if (t != null) {
+            t.weight = weight;
+        }
+    }
+
+    /**
+     * Caps the number of a tenant's notifications in flight. Its other notifications wait
+     * for one of its own to be answered, even if the client has free slots.
+     *
+     * @param tenant      The tenant's key
+     * @param maxInFlight The maximum number of the tenant's notifications awaiting a response
+     */
+    public void setTenantMaxInFlight(String tenant, int maxInFlight) {
+        if (maxInFlight <= 0) {
+            throw new IllegalArgumentException("maxInFlight must be positive: " + maxInFlight);
+        }
+
+        synchronized (this) {
+            final String key = tenant == null ? "" : tenant;
+            tenantMaxInFlight.put(key, maxInFlight);
+            final Tenant t = tenants.get(key);
+            if (t != null) {
+                t.maxInFlight = maxInFlight;
+            }
+        }
+
+        // A raised cap may let queued notifications through
+        drain();
+    }
+
+    /**
+     * Returns the number of notifications awaiting a response.
+     *
+     * @return The number of notifications in flight
+     */
+    public synchronized int getInFlightCount() {
+        return inFlight;
+    }
+
+    /**
+     * Returns the number of a tenant's notifications awaiting a response.
+     *
+     * @param tenant The tenant's key
+     * @return The number of the tenant's notifications in flight
+     */
+    public synchronized int getInFlightCount(String tenant) {
+        final Tenant t = tenants.get(tenant == null ? "" : tenant);
+        return t == null ? 0 : t.inFlight;
+    }
+
+    @Override
+    public boolean isSynchronous() {
+        return false;
+    }
+
+    @Override
+    public void push(Notification notification, NotificationResponseListener listener) {
+        Notification superseded = null;
+        NotificationResponseListener supersededListener = null;
+
+        synchronized (this) {
+            final String key = coalescing ? coalescingKey(notification) : null;
+            final Entry queued = key == null ? null : coalescable.get(key);
+            final Tenant tenant = tenant(tenantKey.apply(notification));
+            final Level level = level(notification.getPriority());
+
+            // The newer notification takes the older one's place only in the same tenant's
+            // queue at the same priority; otherwise, the older one is taken out of its queue
+            boolean replaced = false;
+            if (queued != null) {
+                superseded = queued.notification;
+                supersededListener = queued.listener;
+                coalesced++;
+
+                final Level queuedLevel = level(superseded.getPriority());
+                if (queued.tenant == tenant && queuedLevel == level) {
+                    queued.notification = notification;
+                    queued.listener = listener;
+                    replaced = true;
+                } else {
+                    queuedLevel.remove(queued);
+                    queued.tenant.queued--;
+                    coalescable.remove(key);
+                    if (queued.tenant != tenant) {
+                        retire(queued.tenant);
+                    }
+                }
+            }
+
+            if (!replaced) {
+                final Entry entry;
+                try {
+                    entry = level.add(tenant, notification, listener, ticker.getAsLong());
+                } catch (RuntimeException e) {
+                    retire(tenant);
+                    throw e;
+                }
+                tenant.queued++;
+
+                if (key != null && entry != null) {
+                    entry.coalescingKey = key;
+                    coalescable.put(key, entry);
+                }
+            }
+        }
+
+        if (superseded != null) {
+            supersededListener.onFailure(superseded, new NotificationResponse(null, -1, null,
+                    new NotificationCoalescedException("Superseded by a newer notification with the same collapse ID")));
+        }
+
+        drain();
+    }
+
+    private static String coalescingKey(Notification notification) {
+        final String collapseId = notification.getCollapseId();
+        if (collapseId == null) {
+            return null;
+        }
+        return notification.getToken() + '\n' + notification.getTopic() + '\n' + collapseId;
+    }
+
+    @Override
+    public NotificationResponse push(Notification notification) {
+        throw new UnsupportedOperationException("Synchronous requests are not supported by this client");
+    }
+
+    @Override
+    public OkHttpClient getHttpClient() {
+        return client.getHttpClient();
+    }
+
+    /**
+     * Sends queued notifications while slots are free. Only one thread runs the loop at
+     * a time, so that a client answering synchronously doesn't recurse back into it.
+     */
+    private void drain() {
+        if (wip.getAndIncrement() != 0) {
+            return;
+        }
+
+        final CircuitBreaker breaker = circuitBreaker;
+        int missed = 1;
+        do {
+            while (true) {
+                final Entry entry;
+                final String expiry;
+                long permit = CircuitBreaker.NOT_PERMITTED;
+                synchronized (this) {
+                    if (inFlight >= maxInFlight) {
+                        break;
+                    }
+
+                    // Queued notifications wait while the breaker is open
+                    if (breaker != null) {
+                        if (immediate.size + powerConsideration.size == 0) {
+                            break;
+                        }
+                        permit = breaker.tryAcquire();
+                        if (permit == CircuitBreaker.NOT_PERMITTED) {
+                            break;
+                        }
+                    }
+
+                    entry = poll();
+                    if (entry == null) {
+                        if (breaker != null) {
+                            breaker.release(permit);
+                        }
+                        break;
+                    }
+
+                    entry.tenant.queued--;
+                    if (entry.coalescingKey != null) {
+                        coalescable.remove(entry.coalescingKey);
+                    }
+                    expiry = checkExpiry(entry.notification);
+                    if (expiry == null) {
+                        inFlight++;
+                        entry.tenant.inFlight++;
+                    } else {
+                        expired++;
+                        retire(entry.tenant);
+                        if (breaker != null) {
+                            breaker.release(permit);
+                        }
+                    }
+                }
+
+                if (expiry == null) {
+                    send(entry, breaker, permit);
+                } else {
+                    entry.listener.onFailure(entry.notification,
+                            new NotificationResponse(null, -1, null, new NotificationExpiredException(expiry)));
+                }
+            }
+
+            missed = wip.addAndGet(-missed);
+        } while (missed != 0);
+    }
+
+    /**
+     * Checks whether a notification has expired, or will within the margin.
+     *
+     * @return Why the notification has expired, or null if it hasn't
+     */
+    private String checkExpiry(Notification notification) {
+        final long expiration = notification.getExpiration();
+        final long deadline = notification.getDeadline();
+        if (expiration <= 0 && deadline <= -1) {
+            return null;
+        }
+
+        final long cutoff = clock.getAsLong() + expirationMargin;
+        if (expiration > 0 && expiration * 1000 <= cutoff) {
+            return "The notification expired before it could be sent: apns-expiration " + expiration;
+        }
+        if (deadline > -1 && deadline <= cutoff) {
+            return "The notification's deadline passed before it could be sent: " + deadline;
+        }
+        return null;
+    }
+
+    private void send(Entry entry, CircuitBreaker breaker, long permit) {
+        final NotificationResponseListener listener = new NotificationResponseListener() {
+            @Override
+            public void onSuccess(Notification notification) {
+                if (breaker != null) {
+                    breaker.onResult(permit, null);
+                }
+                release(entry.tenant);
+                entry.listener.onSuccess(notification);
+            }
+
+            @Override
+            public void onFailure(Notification notification, NotificationResponse response) {
+                if (breaker != null) {
+                    breaker.onResult(permit, response);
+                }
+                release(entry.tenant);
+                entry.listener.onFailure(notification, response);
+            }
+        };
+
+        try {
+            client.push(entry.notification, listener);
+        } catch (RuntimeException e) {
+            listener.onFailure(entry.notification, new NotificationResponse(null, -1, null, e));
+        }
+    }
+
+    private void release(Tenant tenant) {
+        synchronized (this) {
+            inFlight--;
+            tenant.inFlight--;
+            retire(tenant);
+        }
+        drain();
+    }
+
+    private Level level(Notification.Priority priority) {
+        return priority == Notification.Priority.POWERCONSIDERATION ? powerConsideration : immediate;
+    }
+
+    private Tenant tenant(String key) {
+        if (key == null) {
+            key = "";
+        }
+
+        Tenant tenant = tenants.get(key);
+        if (tenant == null) {
+            tenant = new Tenant(key, nextTenantId++,
+                    tenantWeights.getOrDefault(key, 1), tenantMaxInFlight.getOrDefault(key, Integer.MAX_VALUE));
+            tenants.put(key, tenant);
+        }
+        return tenant;
+    }
+
+    /**
+     * Forgets a tenant once it has nothing queued or in flight, so that tenants seen only
+     * once don't accumulate.
+     */
+    private void retire(Tenant tenant) {
+        if (tenant.queued == 0 && tenant.inFlight == 0) {
+            tenants.remove(tenant.key);
+        }
+    }
+
+    /**
+     * Picks the next notification to be sent, favouring priority 10 without starving priority 5.
+     */
+    private Entry poll() {
+        final boolean powerConsiderationFirst = powerConsideration.size > 0
+                && (immediate.size == 0 || consecutiveImmediate >= MAX_CONSECUTIVE_IMMEDIATE);
+        final Level first = powerConsiderationFirst ? powerConsideration : immediate;
+        final Level second = powerConsiderationFirst ? immediate : powerConsideration;
+        final long now = ticker.getAsLong();
+
+        // The first level may only hold tenants which have reached their in-flight cap
+        Entry entry = first.poll(now);
+        if (entry == null) {
+            entry = second.poll(now);
+            if (entry == null) {
+                return null;
+            }
+        }
+
+        consecutiveImmediate = entry.notification.getPriority() == Notification.Priority.POWERCONSIDERATION
+                ? 0 : consecutiveImmediate + 1;
+        return entry;
+    }
+
+    /**
+     * The time spent queued by the notifications of a priority.
+     */
+    public static final class QueueWait {
+        private final long count;
+        private final long totalNanos;
+        private final long maxNanos;
+
+        QueueWait(long count, long totalNanos, long maxNanos) {
+            this.count = count;
+            this.totalNanos = totalNanos;
+            this.maxNanos = maxNanos;
+        }
+
+        /**
+         * @return The number of notifications that have left the queue
+         */
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * @param unit The unit of the result
+         * @return The average time spent queued, or zero if no notification has left the queue
+         */
+        public long getAverage(TimeUnit unit) {
+            return count == 0 ? 0 : unit.convert(totalNanos / count, TimeUnit.NANOSECONDS);
+        }
+
+        /**
+         * @param unit The unit of the result
+         * @return The longest time spent queued
+         */
+        public long getMax(TimeUnit unit) {
+            return unit.convert(maxNanos, TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public String toString() {
+            return "QueueWait{count=" + count
+                    + ", averageMillis=" + getAverage(TimeUnit.MILLISECONDS)
+                    + ", maxMillis=" + getMax(TimeUnit.MILLISECONDS) + '}';
+        }
+    }
+
+    /**
+     * A tenant's scheduling parameters, and its notifications across both priorities.
+     */
+    private static final class Tenant {
+        private final String key;
+        private final int id;
+        private int weight;
+        private int maxInFlight;
+        private int queued;
+        private int inFlight;
+
+        Tenant(String key, int id, int weight, int maxInFlight) {
+            this.key = key;
+            this.id = id;
+            this.weight = weight;
+            this.maxInFlight = maxInFlight;
+        }
+    }
+
+    /**
+     * The queues for a priority, one per tenant, served by deficit round robin.
+     * Guarded by the client's lock.
+     */
+    private final class Level {
+        private final String name;
+        private final Map<Tenant, TenantQueue> queues = new IdentityHashMap<>();
+        private final ArrayDeque<TenantQueue> round = new ArrayDeque<>();
+        private int size;
+        private long dequeued;
+        private long totalWait;
+        private long maxWait;
+
+        Level(String name) {
+            this.name = name;
+        }
+
+        /**
+         * @return The queued entry, or null if the notification was spilled
+         */
+        Entry add(Tenant tenant, Notification notification, NotificationResponseListener listener, long now) {
+            TenantQueue queue = queues.get(tenant);
+            if (queue == null) {
+                queue = new TenantQueue(tenant, name + "-" + tenant.id);
+                queues.put(tenant, queue);
+                round.addLast(queue);
+            }
+
+            final Entry entry;
+            try {
+                entry = queue.add(notification, listener, now);
+            } catch (RuntimeException e) {
+                if (queue.isEmpty()) {
+                    queues.remove(tenant);
+                    round.remove(queue);
+                }
+                throw e;
+            }
+            size++;
+            return entry;
+        }
+
+        /**
+         * Takes a notification held in memory out of its tenant's queue, wherever it is.
+         */
+        void remove(Entry entry) {
+            final TenantQueue queue = queues.get(entry.tenant);
+            if (queue == null || !queue.queue.remove(entry)) {
+                return;
+            }
+
+            inMemory--;
+            size--;
+            if (queue.isEmpty()) {
+                queues.remove(entry.tenant);
+                round.remove(queue);
+            }
+        }
+
+        /**
+         * Takes a notification from the tenant whose turn it is, skipping tenants which
+         * have reached their in-flight cap.
+         *
+         * @return The notification, or null if every queued tenant is at its cap
+         */
+        Entry poll(long now) {
+            for (int turns = round.size(); turns > 0; turns--) {
+                final TenantQueue queue = round.peekFirst();
+                if (queue.tenant.inFlight >= queue.tenant.maxInFlight) {
+                    queue.deficit = 0;
+                    round.addLast(round.pollFirst());
+                    continue;
+                }
+
+                if (queue.deficit == 0) {
+                    queue.deficit = queue.tenant.weight;
+                }
+
+                final Entry entry = queue.poll();
+                queue.deficit--;
+                size--;
+
+                if (queue.isEmpty()) {
+                    round.pollFirst();
+                    queues.remove(queue.tenant);
+                } else if (queue.deficit == 0) {
+                    round.addLast(round.pollFirst());
+                }
+
+                final long wait = now - entry.enqueuedAt;
+                dequeued++;
+                totalWait += wait;
+                maxWait = Math.max(maxWait, wait);
+                return entry;
+            }
+            return null;
+        }
+    }
+
+    /**
+     * A tenant's queue at a priority: in memory while the client is under its high-water
+     * mark, and spilled otherwise. Never empty while it's part of its level's round.
+     */
+    private final class TenantQueue {
+        private final Tenant tenant;
+        private final String spillName;
+        private final ArrayDeque<Entry> queue = new ArrayDeque<>();
+        private MappedQueue spill;
+        private int deficit;
+
+        TenantQueue(Tenant tenant, String spillName) {
+            this.tenant = tenant;
+            this.spillName = spillName;
+        }
+
+        boolean isEmpty() {
+            return queue.isEmpty() && (spill == null || spill.isEmpty());
+        }
+
+        Entry add(Notification notification, NotificationResponseListener listener, long now) {
+            if (spillDirectory != null && ((spill != null && !spill.isEmpty()) || inMemory >= highWaterMark)) {
+                spill(notification, listener, now);
+                return null;
+            }
+
+            final Entry entry = new Entry(notification, listener, now, tenant);
+            queue.add(entry);
+            inMemory++;
+            return entry;
+        }
+
+        Entry poll() {
+            if (queue.isEmpty()) {
+                unspill();
+            }
+
+            final Entry entry = queue.poll();
+            inMemory--;
+
+            // Keep the in-memory queue topped up, so that spilled notifications stay behind it
+            if (inMemory < highWaterMark) {
+                unspill();
+            }
+            return entry;
+        }
+
+        private void spill(Notification notification, NotificationResponseListener listener, long now) {
+            final byte[] encoded = NotificationCodec.encode(notification);
+            final ByteBuffer record = ByteBuffer.allocate(4 + 8 + encoded.length);
+            record.putInt(spilledListeners.register(listener)).putLong(now).put(encoded);
+
+            try {
+                if (spill == null) {
+                    spill = new MappedQueue(spillDirectory.getFile(), spillName, SPILL_SEGMENT_SIZE);
+                }
+                spill.add(record.array());
+            } catch (IOException e) {
+                spilledListeners.release(record.getInt(0));
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private void unspill() {
+            final byte[] record = spill == null ? null : spill.poll();
+            if (record != null) {
+                final ByteBuffer buffer = ByteBuffer.wrap(record);
+                final NotificationResponseListener listener = spilledListeners.release(buffer.getInt());
+                final long enqueuedAt = buffer.getLong();
+                queue.add(new Entry(NotificationCodec.decode(buffer), listener, enqueuedAt, tenant));
+                inMemory++;
+            }
+        }
+    }
+
+    /**
+     * Identifies the listeners of spilled notifications, counting their references.
+     */
+    private static final class SpilledListeners {
+        private final Map<NotificationResponseListener, Registration> byListener = new IdentityHashMap<>();
+        private final Map<Integer, Registration> byId = new HashMap<>();
+        private int nextId;
+
+        private static final class Registration {
+            private final int id;
+            private final NotificationResponseListener listener;
+            private int references;
+
+            Registration(int id, NotificationResponseListener listener) {
+                this.id = id;
+                this.listener = listener;
+            }
+        }
+
+        int register(NotificationResponseListener listener) {
+            Registration registration = byListener.get(listener);
+            if (registration == null) {
+                registration = new Registration(nextId++, listener);
+                byListener.put(listener, registration);
+                byId.put(registration.id, registration);
+            }
+
+            registration.references++;
+            return registration.id;
+        }
+
+        NotificationResponseListener release(int id) {
+            final Registration registration = byId.get(id);
+            if (--registration.references == 0) {
+                byId.remove(id);
+                byListener.remove(registration.listener);
+            }
+            return registration.listener;
+        }
+    }
+}
@@ -33,9 +33,11 @@ package com.clevertap.apns.clients;
 import com.clevertap.apns.*;
 import com.clevertap.apns.exceptions.InvalidTrustManagerException;
 import com.clevertap.apns.internal.Constants;
-import com.clevertap.apns.internal.JWT;
+import com.clevertap.apns.internal.ProviderTokenCache;
 import okhttp3.*;
-import okio.BufferedSink;
+import okhttp3.internal.http2.ConnectionShutdownException;
+import okhttp3.internal.http2.ErrorCode;
+import okhttp3.internal.http2.StreamResetException;
 
 import javax.net.ssl.*;
 import java.io.IOException;
@@ -43,7 +45,6 @@ import java.io.InputStream;
 import java.security.*;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
-import java.security.spec.InvalidKeySpecException;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.UUID;
@@ -54,16 +55,22 @@ import java.util.UUID;
 // NOSONAR
 public class SyncOkHttpApnsClient implements ApnsClient { // NOSONAR
 
+    /**
+     * The number of times a request which the gateway never processed (for instance, one that
+     * was refused when the connection was being drained by a GOAWAY) is replayed.
+     */
+    protected static final int MAX_UNPROCESSED_REPLAYS = 3;
+
+    private static final String EXPIRED_PROVIDER_TOKEN = "ExpiredProviderToken";
+
     private final String defaultTopic;
     private final String apnsAuthKey;
     private final String teamID;
     private final String keyID;
     protected final OkHttpClient client;
     private final String gateway;
-    private static final MediaType mediaType = MediaType.parse("application/json");
 
-    private long lastJWTTokenTS = 0;
-    private String cachedJWTToken = null;
+    private final String deviceUrlPrefix;
 
     /**
      * Creates a new client which uses token authentication API.
@@ -119,6 +126,7 @@ public class SyncOkHttpApnsClient implements ApnsClient { // NOSONAR
         } else {
             gateway = gatewayUrl;
         }
+        deviceUrlPrefix = gateway + Constants.DEVICE_PATH;
     }
 
     /**
@@ -303,6 +311,7 @@ public class SyncOkHttpApnsClient implements ApnsClient { // NOSONAR
         } else {
             gateway = gatewayUrl;
         }
+        deviceUrlPrefix = gateway + Constants.DEVICE_PATH;
     }
 
     /**
@@ -416,114 +425,182 @@ public class SyncOkHttpApnsClient implements ApnsClient { // NOSONAR
                 "Asynchronous requests are not supported by this client");
     }
 
+    /**
+     * Assembles the OkHttp request for a notification.
+     * <p>
+     * The topic, authentication and provider token logic live in their own methods, but there
+     * is no engine-neutral request: a second HTTP engine is deferred, as OkHttp types are part
+     * of the public API ({@link ApnsClient#getHttpClient()}) and the library targets Java 8.
+     *
+     * @param notification The notification
+     * @return The request, or null if the provider token couldn't be signed
+     */
     protected final Request buildRequest(Notification notification) {
-        final String topic =
-                notification.getTopic() != null ? notification.getTopic() : defaultTopic;
+        final String topic = resolveTopic(notification);
         final String collapseId = notification.getCollapseId();
         final UUID uuid = notification.getUuid();
         final long expiration = notification.getExpiration();
         final Notification.Priority priority = notification.getPriority();
         final String pushType = notification.getPushType();
+        // The payload is encoded once per notification; OkHttp derives the content-length header
+        // from the body.
+        // Header names are all distinct, so addHeader() skips header()'s search for duplicates.
         Request.Builder rb = new Request.Builder()
-                .url(gateway + "/3/device/" + notification.getToken())
-                .post(new RequestBody() {
-                    @Override
-                    public MediaType contentType() {
-                        return mediaType;
-                    }
-
-                    @Override
-                    public void writeTo(BufferedSink sink) throws IOException {
-                        sink.write(notification.getPayload().getBytes(Constants.UTF_8));
-                    }
-                })
-                .header("content-length",
-                        notification.getPayload().getBytes(Constants.UTF_8).length + "");
+                .url(deviceUrlPrefix + notification.getToken())
+                .post(notification.getRequestBody());
 
         if (topic != null) {
-            rb.header("apns-topic", topic);
+            rb.addHeader(Constants.HEADER_TOPIC, topic);
         }
 
         if (collapseId != null) {
-            rb.header("apns-collapse-id", collapseId);
+            rb.addHeader(Constants.HEADER_COLLAPSE_ID, collapseId);
         }
 
         if (uuid != null) {
-            rb.header("apns-id", uuid.toString());
+            rb.addHeader(Constants.HEADER_ID, uuid.toString());
         }
 
         if (expiration > -1) {
-            rb.header("apns-expiration", String.valueOf(expiration));
+            rb.addHeader(Constants.HEADER_EXPIRATION, String.valueOf(expiration));
         }
 
         if (priority != null) {
-            rb.header("apns-priority", String.valueOf(priority.getCode()));
+            rb.addHeader(Constants.HEADER_PRIORITY, String.valueOf(priority.getCode()));
         }
 
         if (pushType != null) {
-            rb.header("apns-push-type", pushType);
+            rb.addHeader(Constants.HEADER_PUSH_TYPE, pushType);
         }
 
-        if (keyID != null && teamID != null && apnsAuthKey != null) {
-
-            // Generate a new JWT token if it's null, or older than 55 minutes
-            if (cachedJWTToken == null
-                    || System.currentTimeMillis() - lastJWTTokenTS > 55 * 60 * 1000) {
-                try {
-                    lastJWTTokenTS = System.currentTimeMillis();
-                    cachedJWTToken = JWT.getToken(teamID, keyID, apnsAuthKey);
-                } catch (InvalidKeySpecException | NoSuchAlgorithmException | SignatureException | InvalidKeyException e) {
-                    return null;
-                }
+        if (isTokenAuthentication()) {
+            final String authorization = getAuthorization();
+            if (authorization == null) {
+                return null;
             }
 
-            rb.header("authorization", "bearer " + cachedJWTToken);
+            rb.addHeader(Constants.HEADER_AUTHORIZATION, authorization);
         }
 
         return rb.build();
     }
 
+    /**
+     * Returns the topic a notification is sent to.
+     *
+     * @param notification The notification
+     * @return The notification's topic, or the default topic if it doesn't have one
+     */
+    protected final String resolveTopic(Notification notification) {
+        return notification.getTopic() != null ? notification.getTopic() : defaultTopic;
+    }
+
+    /**
+     * Checks whether this client authenticates with provider tokens (as opposed to a
+     * certificate presented during the TLS handshake).
+     *
+     * @return Whether requests need an authorization header
+     */
+    protected final boolean isTokenAuthentication() {
+        return keyID != null && teamID != null && apnsAuthKey != null;
+    }
+
+    /**
+     * Returns the value of the authorization header for token authentication.
+     * Provider tokens are shared by all the clients using the same key, through
+     * {@link ProviderTokenCache#getDefault()}.
+     *
+     * @return The authorization header value, or null if the token couldn't be signed
+     */
+    protected String getAuthorization() {
+        return ProviderTokenCache.getDefault().getAuthorization(teamID, keyID, apnsAuthKey);
+    }
+
+    /**
+     * Lets the provider token cache know if APNs rejected the token a request was sent with
+     * as expired, so that a new one is signed.
+     *
+     * @param request  The request
+     * @param response The response to the request
+     */
+    protected final void checkProviderToken(Request request, NotificationResponse response) {
+        if (response.getHttpStatusCode() == 403 && isTokenAuthentication()
+                && response.getResponseBody() != null
+                && response.getResponseBody().contains(EXPIRED_PROVIDER_TOKEN)) {
+            ProviderTokenCache.getDefault().expire(teamID, keyID,
+                    request.header(Constants.HEADER_AUTHORIZATION));
+        }
+    }
+
 
     @Override
     public NotificationResponse push(Notification notification) {
         final Request request = buildRequest(notification);
-        Response response = null;
-
-        try {
-            response = client.newCall(request).execute();
-            return parseResponse(response);
-        } catch (Throwable t) {
-            return new NotificationResponse(null, -1, null, t);
-        } finally {
-            if (response != null) {
-                response.body().close();
+
+        for (int replays = 0; ; replays++) {
+            Response response = null;
+
+            try {
+                response = client.newCall(request).execute();
+                final NotificationResponse nr = parseResponse(response);
+                checkProviderToken(request, nr);
+                return nr;
+            } catch (Throwable t) {
+                if (replays < MAX_UNPROCESSED_REPLAYS && isUnprocessed(t)) {
+                    continue;
+                }
+                return new NotificationResponse(null, -1, null, t);
+            } finally {
+                if (response != null) {
+                    response.body().close();
+                }
             }
         }
     }
 
+    /**
+     * Checks whether a request failed before the gateway started processing it.
+     * <p>
+     * When APNs recycles a connection, it sends a GOAWAY frame: streams above the
+     * last-stream-id it carries are reset with REFUSED_STREAM, and new streams on the
+     * draining connection fail with a {@link ConnectionShutdownException}. HTTP/2 guarantees
+     * that such requests were not processed, so they can be replayed on a fresh connection
+     * without the device receiving the notification twice. Any other failure may have
+     * happened after the gateway accepted the notification, and is never replayed.
+     *
+     * @param t The failure
+     * @return Whether the request is known to be unprocessed
+     */
+    protected static boolean isUnprocessed(Throwable t) {
+        if (t instanceof ConnectionShutdownException) {
+            return true;
+        }
+
+        return t instanceof StreamResetException
+                && ((StreamResetException) t).errorCode == ErrorCode.REFUSED_STREAM;
+    }
+
     @Override
     public OkHttpClient getHttpClient() {
         return client;
     }
 
     protected NotificationResponse parseResponse(Response response) throws IOException {
-        String contentBody = null;
         int statusCode = response.code();
 
-        NotificationRequestError error = null;
-
-        if (response.code() != 200) {
-            error = NotificationRequestError.get(statusCode);
-            contentBody = response.body() != null ? response.body().string() : null;
-        } else {
+        if (statusCode == 200) {
             try (ResponseBody responseBody = response.body()) {
                 if (responseBody != null) {
                     // Read the response into memory but don't use the content
                     responseBody.source().skip(responseBody.contentLength());
                 }
             }
+            // Successful responses carry nothing worth keeping, so they share one instance
+            return NotificationResponse.SUCCESS;
         }
 
+        final NotificationRequestError error = NotificationRequestError.get(statusCode);
+        final String contentBody = response.body() != null ? response.body().string() : null;
         return new NotificationResponse(error, statusCode, contentBody, null);
     }
 }
\ No newline at end of file
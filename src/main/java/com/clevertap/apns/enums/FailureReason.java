@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2016, CleverTap
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * - Neither the name of CleverTap nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.clevertap.apns.enums;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The reasons APNs gives for rejecting a notification, found in the response body.
+ * See <a href="https://developer.apple.com/documentation/usernotifications/handling-notification-responses-from-apns">here</a>
+ * for what each of them means.
+ */
+public enum FailureReason {
+    BadCollapseId, BadDeviceToken, BadExpirationDate, BadMessageId, BadPriority, BadTopic,
+    DeviceTokenNotForTopic, DuplicateHeaders, IdleTimeout, InvalidPushType, MissingDeviceToken,
+    MissingTopic, PayloadEmpty, TopicDisallowed, BadCertificate, BadCertificateEnvironment,
+    ExpiredProviderToken, Forbidden, InvalidProviderToken, MissingProviderToken,
+    UnrelatedKeyIdInToken, BadEnvironmentKeyIdInToken, BadPath, MethodNotAllowed, ExpiredToken,
+    Unregistered, PayloadTooLarge, TooManyProviderTokenUpdates, TooManyRequests,
+    InternalServerError, ServiceUnavailable, Shutdown,
+
+    /**
+     * A reason this library doesn't know of, a response without one, or a notification
+     * that wasn't sent.
+     */
+    Unknown;
+
+    private static final String REASON_KEY = "\"reason\"";
+
+    private static final Map<String, FailureReason> reasons = new HashMap<>();
+
+    static {
+        for (FailureReason reason : values()) {
+            reasons.put(reason.name(), reason);
+        }
+    }
+
+    /**
+     * Finds the reason in a response body, such as <code>{"reason":"BadDeviceToken"}</code>,
+     * without parsing the rest of it.
+     *
+     * @param responseBody The response body, or null
+     * @return The reason, or {@link #Unknown} if there's none this library knows of
+     */
+    public static FailureReason parse(String responseBody) {
+        if (responseBody == null) {
+            return Unknown;
+        }
+
+        final int key = responseBody.indexOf(REASON_KEY);
+        if (key < 0) {
+            return Unknown;
+        }
+
+        final int colon = responseBody.indexOf(':', key + REASON_KEY.length());
+        if (colon < 0) {
+            return Unknown;
+        }
+
+        final int start = responseBody.indexOf('"', colon + 1);
+        final int end = start < 0 ? -1 : responseBody.indexOf('"', start + 1);
+        if (end < 0) {
+            return Unknown;
+        }
+
+        final FailureReason reason = reasons.get(responseBody.substring(start + 1, end));
+        return reason != null ? reason : Unknown;
+    }
+}
@@ -39,4 +39,13 @@ public class Constants {
     public static final Charset UTF_8 = Charset.forName("UTF-8");
     public static final String ENDPOINT_PRODUCTION = "https://api.push.apple.com";
     public static final String ENDPOINT_SANDBOX = "https://api.development.push.apple.com";
+    public static final String DEVICE_PATH = "/3/device/";
+
+    public static final String HEADER_TOPIC = "apns-topic";
+    public static final String HEADER_COLLAPSE_ID = "apns-collapse-id";
+    public static final String HEADER_ID = "apns-id";
+    public static final String HEADER_EXPIRATION = "apns-expiration";
+    public static final String HEADER_PRIORITY = "apns-priority";
+    public static final String HEADER_PUSH_TYPE = "apns-push-type";
+    public static final String HEADER_AUTHORIZATION = "authorization";
 }
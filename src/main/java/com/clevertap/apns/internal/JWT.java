@@ -54,34 +54,78 @@ public final class JWT {
      */
     public static String getToken(final String teamID, final String keyID, final String secret)
             throws InvalidKeySpecException, NoSuchAlgorithmException, InvalidKeyException, SignatureException {
-        final int now = (int) (System.currentTimeMillis() / 1000);
+        return getToken(teamID, keyID, parsePrivateKey(secret));
+    }
+
+    /**
+     * Generates a JWT token as per Apple's specifications, with an already parsed key.
+     *
+     * @param teamID The team ID (found in the member center)
+     * @param keyID  The key ID (found when generating your private key)
+     * @param key    The private key, as returned by {@link #parsePrivateKey(String)}
+     * @return The resulting token, which will be valid for one hour
+     * @throws NoSuchAlgorithmException if the key algo failed to load
+     * @throws InvalidKeyException      if the key is invalid
+     * @throws SignatureException       if this signature object is not initialized properly.
+     */
+    public static String getToken(final String teamID, final String keyID, final PrivateKey key)
+            throws NoSuchAlgorithmException, InvalidKeyException, SignatureException {
+        return getToken(teamID, keyID, key, System.currentTimeMillis());
+    }
+
+    /**
+     * Generates a JWT token as per Apple's specifications, issued at a given time.
+     *
+     * @param teamID   The team ID (found in the member center)
+     * @param keyID    The key ID (found when generating your private key)
+     * @param key      The private key, as returned by {@link #parsePrivateKey(String)}
+     * @param issuedAt The time the token is issued at, in milliseconds since the epoch
+     * @return The resulting token, which will be valid for one hour from that time
+     * @throws NoSuchAlgorithmException if the key algo failed to load
+     * @throws InvalidKeyException      if the key is invalid
+     * @throws SignatureException       if this signature object is not initialized properly.
+     */
+    public static String getToken(final String teamID, final String keyID, final PrivateKey key,
+                                  final long issuedAt)
+            throws NoSuchAlgorithmException, InvalidKeyException, SignatureException {
+        final long iat = issuedAt / 1000;
         final String header = "{\"alg\":\"ES256\",\"kid\":\"" + keyID + "\"}";
-        final String payload = "{\"iss\":\"" + teamID + "\",\"iat\":" + now + "}";
+        final String payload = "{\"iss\":\"" + teamID + "\",\"iat\":" + iat + "}";
 
         final String part1 = Base64.encodeBase64String(header.getBytes(StandardCharsets.UTF_8))
                 + "."
                 + Base64.encodeBase64String(payload.getBytes(StandardCharsets.UTF_8));
 
-        return part1 + "." + ES256(secret, part1);
+        return part1 + "." + ES256(key, part1);
+    }
+
+    /**
+     * Parses a private key for signing tokens.
+     *
+     * @param secret The private key (excluding the header and the footer)
+     * @return The key
+     * @throws InvalidKeySpecException  if the key is incorrect
+     * @throws NoSuchAlgorithmException if the key algo failed to load
+     */
+    public static PrivateKey parsePrivateKey(final String secret)
+            throws NoSuchAlgorithmException, InvalidKeySpecException {
+        KeyFactory kf = KeyFactory.getInstance("EC");
+        KeySpec keySpec = new PKCS8EncodedKeySpec(Base64.decodeBase64(secret.getBytes()));
+        return kf.generatePrivate(keySpec);
     }
 
     /**
      * Adopted from http://stackoverflow.com/a/20322894/2274894
      *
-     * @param secret The secret
-     * @param data   The data to be encoded
+     * @param key  The private key
+     * @param data The data to be encoded
      * @return The encoded token
-     * @throws InvalidKeySpecException  if the key is incorrect
      * @throws NoSuchAlgorithmException if the key algo failed to load
      * @throws InvalidKeyException      if the key is invalid
      * @throws SignatureException       if this signature object is not initialized properly.
      */
-    private static String ES256(final String secret, final String data)
-            throws NoSuchAlgorithmException, InvalidKeySpecException, InvalidKeyException, SignatureException {
-
-        KeyFactory kf = KeyFactory.getInstance("EC");
-        KeySpec keySpec = new PKCS8EncodedKeySpec(Base64.decodeBase64(secret.getBytes()));
-        PrivateKey key = kf.generatePrivate(keySpec);
+    private static String ES256(final PrivateKey key, final String data)
+            throws NoSuchAlgorithmException, InvalidKeyException, SignatureException {
 
         final Signature sha256withECDSA = Signature.getInstance("SHA256withECDSA");
         sha256withECDSA.initSign(key);
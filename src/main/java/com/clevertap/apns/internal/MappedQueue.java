@@ -0,0 +1,247 @@
+/*
+ * Copyright (c) 2016, CleverTap
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * - Neither the name of CleverTap nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.clevertap.apns.internal;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+
+/**
+ * A first-in, first-out queue of records, stored in fixed-size memory-mapped segment files.
+ * Segment files are deleted as soon as all their records have been read.
+ * <p>
+ * Unlike {@link SegmentLog}, the queue is transient. Its directory must belong to a single
+ * owner, which {@link #claimDirectory(File)} provides: each owner gets its own subdirectory,
+ * and the ones left over by owners which are gone are deleted. This class is not thread safe.
+ */
+public final class MappedQueue {
+    private static final int LENGTH_SIZE = 4;
+    private static final String SUFFIX = ".spill";
+    private static final String DIRECTORY_PREFIX = "queues-";
+    private static final String LOCK_FILE = "lock";
+
+    private final File directory;
+    private final String name;
+    private final int segmentSize;
+    private final ArrayDeque<Segment> segments = new ArrayDeque<>();
+    private int nextId;
+    private int size;
+
+    private static final class Segment {
+        private final File file;
+        private final MappedByteBuffer buffer;
+        private int readPosition;
+        private int writePosition;
+
+        Segment(File file, MappedByteBuffer buffer) {
+            this.file = file;
+            this.buffer = buffer;
+        }
+    }
+
+    /**
+     * A directory for the queues of a single owner, locked for as long as the owner is
+     * reachable (or until the JVM exits).
+     */
+    public static final class Directory {
+        private final File file;
+        // Held, so that the lock lasts as long as the owner
+        private final FileLock lock;
+
+        private Directory(File file, FileLock lock) {
+            this.file = file;
+            this.lock = lock;
+        }
+
+        public File getFile() {
+            return file;
+        }
+    }
+
+    /**
+     * Creates an empty queue.
+     *
+     * @param directory   The directory holding the segment files (created if missing), which
+     *                    no other queue of the same name may use
+     * @param name        The name of the queue, which prefixes its segment files
+     * @param segmentSize The size of each segment file, in bytes
+     * @throws IOException if the directory can't be created
+     */
+    public MappedQueue(File directory, String name, int segmentSize) throws IOException {
+        if (segmentSize <= LENGTH_SIZE) {
+            throw new IllegalArgumentException("Segment size too small: " + segmentSize);
+        }
+
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create " + directory);
+        }
+
+        this.directory = directory;
+        this.name = name;
+        this.segmentSize = segmentSize;
+    }
+
+    /**
+     * Creates a subdirectory of a shared directory, for the queues of a single owner, so that
+     * owners (in this JVM or another) never touch each other's segment files. Subdirectories
+     * left over by owners which are gone, and are no longer locked, are deleted.
+     *
+     * @param parent The shared directory (created if missing)
+     * @return The owner's directory
+     * @throws IOException if the directory can't be created or locked
+     */
+    public static Directory claimDirectory(File parent) throws IOException {
+        if (!parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Unable to create " + parent);
+        }
+
+        final File[] others = parent.listFiles((dir, file) -> file.startsWith(DIRECTORY_PREFIX));
+        if (others != null) {
+            for (File other : others) {
+                deleteIfAbandoned(other);
+            }
+        }
+
+        final File directory = Files.createTempDirectory(parent.toPath(), DIRECTORY_PREFIX).toFile();
+        final FileChannel channel = FileChannel.open(new File(directory, LOCK_FILE).toPath(),
+                StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        try {
+            return new Directory(directory, channel.lock());
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private static void deleteIfAbandoned(File directory) {
+        final File lockFile = new File(directory, LOCK_FILE);
+        try (FileChannel channel = FileChannel.open(lockFile.toPath(), StandardOpenOption.WRITE)) {
+            final FileLock lock = channel.tryLock();
+            if (lock == null) {
+                return;
+            }
+
+            final File[] files = directory.listFiles((dir, file) -> file.endsWith(SUFFIX));
+            if (files != null) {
+                for (File file : files) {
+                    //noinspection ResultOfMethodCallIgnored
+                    file.delete();
+                }
+            }
+            //noinspection ResultOfMethodCallIgnored
+            lockFile.delete();
+            lock.release();
+        } catch (OverlappingFileLockException e) {
+            // Locked by an owner in this JVM
+            return;
+        } catch (IOException e) {
+            // Not one of ours, or already gone
+            return;
+        }
+        //noinspection ResultOfMethodCallIgnored
+        directory.delete();
+    }
+
+    /**
+     * Appends a record to the tail of the queue.
+     *
+     * @param data The record
+     * @throws IOException if a new segment file couldn't be created
+     */
+    public void add(byte[] data) throws IOException {
+        if (LENGTH_SIZE + data.length > segmentSize) {
+            throw new IllegalArgumentException("Record of " + data.length
+                    + " bytes doesn't fit in a segment of " + segmentSize + " bytes");
+        }
+
+        Segment tail = segments.peekLast();
+        if (tail == null || tail.writePosition + LENGTH_SIZE + data.length > segmentSize) {
+            tail = newSegment();
+            segments.addLast(tail);
+        }
+
+        tail.buffer.putInt(tail.writePosition, data.length);
+        tail.buffer.position(tail.writePosition + LENGTH_SIZE);
+        tail.buffer.put(data);
+        tail.writePosition += LENGTH_SIZE + data.length;
+        size++;
+    }
+
+    /**
+     * Removes the record at the head of the queue.
+     *
+     * @return The record, or null if the queue is empty
+     */
+    public byte[] poll() {
+        final Segment head = segments.peekFirst();
+        if (head == null || head.readPosition == head.writePosition) {
+            return null;
+        }
+
+        final int length = head.buffer.getInt(head.readPosition);
+        final byte[] data = new byte[length];
+        head.buffer.position(head.readPosition + LENGTH_SIZE);
+        head.buffer.get(data);
+        head.readPosition += LENGTH_SIZE + length;
+        size--;
+
+        if (head.readPosition == head.writePosition) {
+            segments.pollFirst();
+            //noinspection ResultOfMethodCallIgnored
+            head.file.delete();
+        }
+
+        return data;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    private Segment newSegment() throws IOException {
+        final File file = new File(directory, String.format("%s-%010d%s", name, nextId++, SUFFIX));
+        // Never map a file another queue may be using
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            return new Segment(file, channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize));
+        }
+    }
+}
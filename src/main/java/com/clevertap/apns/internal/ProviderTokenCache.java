@@ -0,0 +1,211 @@
+/*
+ * Copyright (c) 2016, CleverTap
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * - Neither the name of CleverTap nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.clevertap.apns.internal;
+
+import java.security.GeneralSecurityException;
+import java.security.PrivateKey;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.LongSupplier;
+
+/**
+ * Shares provider tokens between all the clients signing with the same key, identified by
+ * its team ID and key ID.
+ * <p>
+ * Each key is parsed once. Its token is signed again in the background once it's
+ * {@link #REFRESH_AFTER_MILLIS} old, so that requests don't wait for signing, and in the
+ * foreground if it reaches {@link #EXPIRE_AFTER_MILLIS} (APNs rejects tokens older than
+ * an hour). A token is never replaced when it's younger than {@link #MIN_AGE_MILLIS},
+ * as APNs rejects updates more frequent than that with TooManyProviderTokenUpdates.
+ */
+public final class ProviderTokenCache {
+    public static final long REFRESH_AFTER_MILLIS = TimeUnit.MINUTES.toMillis(45);
+    public static final long EXPIRE_AFTER_MILLIS = TimeUnit.MINUTES.toMillis(55);
+    public static final long MIN_AGE_MILLIS = TimeUnit.MINUTES.toMillis(20);
+
+    private static final ProviderTokenCache DEFAULT = new ProviderTokenCache(Executors.newSingleThreadExecutor(r -> {
+        final Thread thread = new Thread(r, "apns-provider-token-refresher");
+        thread.setDaemon(true);
+        return thread;
+    }));
+
+    private final ConcurrentMap<String, Signer> signers = new ConcurrentHashMap<>();
+    private final Executor refresher;
+    private final LongSupplier clock;
+
+    /**
+     * Creates a cache.
+     *
+     * @param refresher Runs the background refreshes
+     */
+    public ProviderTokenCache(Executor refresher) {
+        this(refresher, System::currentTimeMillis);
+    }
+
+    ProviderTokenCache(Executor refresher, LongSupplier clock) {
+        this.refresher = refresher;
+        this.clock = clock;
+    }
+
+    /**
+     * Returns the cache shared by all clients.
+     *
+     * @return The cache
+     */
+    public static ProviderTokenCache getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Returns the value of the authorization header for a key.
+     *
+     * @param teamID The team ID
+     * @param keyID  The key ID
+     * @param secret The private key (excluding the header and the footer)
+     * @return The authorization header value, or null if the token couldn't be signed
+     */
+    public String getAuthorization(String teamID, String keyID, String secret) {
+        final String id = teamID + ' ' + keyID;
+        Signer signer = signers.get(id);
+        if (signer == null || !signer.secret.equals(secret)) {
+            try {
+                signer = new Signer(teamID, keyID, secret);
+            } catch (GeneralSecurityException e) {
+                return null;
+            }
+
+            final Signer previous = signers.putIfAbsent(id, signer);
+            if (previous != null && previous.secret.equals(secret)) {
+                signer = previous;
+            } else if (previous != null) {
+                // The key was rotated
+                signers.put(id, signer);
+            }
+        }
+
+        return signer.getAuthorization(clock.getAsLong());
+    }
+
+    /**
+     * Reports that APNs rejected a token as expired, so that the next request signs a new one
+     * (unless that would be too soon after the rejected one was signed).
+     *
+     * @param teamID        The team ID
+     * @param keyID         The key ID
+     * @param authorization The rejected authorization header value
+     */
+    public void expire(String teamID, String keyID, String authorization) {
+        final Signer signer = signers.get(teamID + ' ' + keyID);
+        if (signer != null) {
+            signer.expire(authorization);
+        }
+    }
+
+    private final class Signer {
+        private final String teamID;
+        private final String keyID;
+        private final String secret;
+        private final PrivateKey key;
+        private final AtomicBoolean refreshing = new AtomicBoolean();
+        private volatile Token token;
+
+        Signer(String teamID, String keyID, String secret) throws GeneralSecurityException {
+            this.teamID = teamID;
+            this.keyID = keyID;
+            this.secret = secret;
+            this.key = JWT.parsePrivateKey(secret);
+            this.token = sign(clock.getAsLong());
+        }
+
+        String getAuthorization(long now) {
+            Token t = token;
+            final long age = now - t.issuedAt;
+
+            if (age >= EXPIRE_AFTER_MILLIS || (t.expired && age >= MIN_AGE_MILLIS)) {
+                synchronized (this) {
+                    t = token;
+                    if (now - t.issuedAt >= EXPIRE_AFTER_MILLIS || (t.expired && now - t.issuedAt >= MIN_AGE_MILLIS)) {
+                        try {
+                            t = token = sign(now);
+                        } catch (GeneralSecurityException e) {
+                            return null;
+                        }
+                    }
+                }
+            } else if (age >= REFRESH_AFTER_MILLIS && refreshing.compareAndSet(false, true)) {
+                refresher.execute(this::refresh);
+            }
+
+            return t.authorization;
+        }
+
+        void expire(String authorization) {
+            final Token t = token;
+            if (t.authorization.equals(authorization)) {
+                t.expired = true;
+            }
+        }
+
+        private void refresh() {
+            try {
+                synchronized (this) {
+                    final long now = clock.getAsLong();
+                    if (now - token.issuedAt >= REFRESH_AFTER_MILLIS) {
+                        token = sign(now);
+                    }
+                }
+            } catch (GeneralSecurityException e) {
+                // Retried on the next request, and in the foreground once the token expires
+            } finally {
+                refreshing.set(false);
+            }
+        }
+
+        private Token sign(long now) throws GeneralSecurityException {
+            return new Token("bearer " + JWT.getToken(teamID, keyID, key, now), now);
+        }
+    }
+
+    private static final class Token {
+        private final String authorization;
+        private final long issuedAt;
+        private volatile boolean expired;
+
+        Token(String authorization, long issuedAt) {
+            this.authorization = authorization;
+            this.issuedAt = issuedAt;
+        }
+    }
+}
@@ -0,0 +1,401 @@
+/*
+ * Copyright (c) 2016, CleverTap
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * - Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * - Neither the name of CleverTap nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package com.clevertap.apns.internal;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only log of records, stored in fixed-size memory-mapped segment files.
+ * <p>
+ * Each record is written as its length, a CRC32 checksum, a state byte, and the data.
+ * Records are appended as pending, and later acknowledged in place. Once a segment is
+ * full and all its records have been acknowledged, its file is deleted.
+ * <p>
+ * Writes to a mapped segment survive the JVM exiting unexpectedly; {@link #force()}
+ * additionally makes them survive an operating system crash. When a log is opened,
+ * the pending records of existing segments are recovered, and new records are appended
+ * to a fresh segment. A torn record (one whose checksum doesn't match) marks the end of
+ * its segment.
+ * <p>
+ * A log holds an exclusive lock on its directory until it's closed, so that no other log
+ * (in this JVM or another) recovers the same records or writes to the same segments.
+ */
+public final class SegmentLog implements Closeable {
+    private static final int HEADER_SIZE = 9; // length (4), checksum (4), state (1)
+    private static final int STATE_OFFSET = 8;
+    private static final byte PENDING = 0;
+    private static final byte ACKNOWLEDGED = 1;
+    private static final String SUFFIX = ".log";
+    private static final String LOCK_FILE = "lock";
+
+    private final File directory;
+    private final int segmentSize;
+    private final FileLock lock;
+    private final TreeMap<Integer, Segment> segments = new TreeMap<>();
+    private final Set<Segment> dirty = new HashSet<>();
+    private final List<Record> recovered = new ArrayList<>();
+    private Segment active;
+    private int nextId;
+    private boolean closed;
+
+    /**
+     * A record read back from the log.
+     */
+    public static final class Record {
+        private final long handle;
+        private final byte[] data;
+
+        Record(long handle, byte[] data) {
+            this.handle = handle;
+            this.data = data;
+        }
+
+        /**
+         * @return The handle used to acknowledge this record
+         */
+        public long getHandle() {
+            return handle;
+        }
+
+        public byte[] getData() {
+            return data;
+        }
+    }
+
+    private static final class Segment {
+        private final int id;
+        private final File file;
+        private final MappedByteBuffer buffer;
+        private int position;
+        private int pending;
+        private boolean sealed;
+
+        Segment(int id, File file, MappedByteBuffer buffer) {
+            this.id = id;
+            this.file = file;
+            this.buffer = buffer;
+        }
+    }
+
+    /**
+     * Opens a log, recovering the pending records of its existing segments.
+     *
+     * @param directory   The directory holding the segment files (created if missing)
+     * @param segmentSize The size of each segment file, in bytes
+     * @throws IOException if the directory or a segment file can't be accessed, or if
+     *                     another log has the directory open
+     */
+    public SegmentLog(File directory, int segmentSize) throws IOException {
+        if (segmentSize <= HEADER_SIZE) {
+            throw new IllegalArgumentException("Segment size too small: " + segmentSize);
+        }
+
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create " + directory);
+        }
+
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.lock = lock(directory);
+
+        try {
+            final File[] files = directory.listFiles((dir, name) -> name.endsWith(SUFFIX));
+            if (files != null) {
+                Arrays.sort(files);
+                for (File file : files) {
+                    recover(file);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            unlock();
+            throw e;
+        }
+    }
+
+    private static FileLock lock(File directory) throws IOException {
+        final FileChannel channel = FileChannel.open(new File(directory, LOCK_FILE).toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        FileLock lock = null;
+        try {
+            lock = channel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            // Held by another log in this JVM
+        } finally {
+            if (lock == null) {
+                channel.close();
+            }
+        }
+
+        if (lock == null) {
+            throw new IOException(directory + " is in use by another log");
+        }
+        return lock;
+    }
+
+    private void unlock() {
+        try {
+            lock.channel().close();
+        } catch (IOException e) {
+            // Closing the channel releases the lock regardless
+        }
+    }
+
+    private void recover(File file) throws IOException {
+        final int id;
+        try {
+            id = Integer.parseInt(file.getName().substring(0, file.getName().length() - SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return;
+        }
+
+        nextId = Math.max(nextId, id + 1);
+        final Segment segment = new Segment(id, file, map(file, file.length(), StandardOpenOption.READ,
+                StandardOpenOption.WRITE));
+        final MappedByteBuffer buffer = segment.buffer;
+        final CRC32 crc = new CRC32();
+        int offset = 0;
+
+        while (offset + HEADER_SIZE <= buffer.capacity()) {
+            final int length = buffer.getInt(offset);
+            if (length <= 0 || offset + HEADER_SIZE + length > buffer.capacity()) {
+                break;
+            }
+
+            final byte[] data = new byte[length];
+            for (int i = 0; i < length; i++) {
+                data[i] = buffer.get(offset + HEADER_SIZE + i);
+            }
+
+            crc.reset();
+            crc.update(data, 0, length);
+            if ((int) crc.getValue() != buffer.getInt(offset + 4)) {
+                break;
+            }
+
+            if (buffer.get(offset + STATE_OFFSET) == PENDING) {
+                recovered.add(new Record(handle(id, offset), data));
+                segment.pending++;
+            }
+
+            offset += HEADER_SIZE + length;
+        }
+
+        segment.position = offset;
+        segment.sealed = true;
+        if (segment.pending == 0) {
+            delete(segment);
+        } else {
+            segments.put(id, segment);
+        }
+    }
+
+    /**
+     * Returns the pending records found when the log was opened, and forgets them.
+     * They remain pending until acknowledged.
+     *
+     * @return The records, in the order they were appended
+     */
+    public synchronized List<Record> takeRecovered() {
+        if (recovered.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        final List<Record> records = new ArrayList<>(recovered);
+        recovered.clear();
+        return records;
+    }
+
+    /**
+     * Appends a pending record.
+     *
+     * @param data The record's data
+     * @return The handle used to acknowledge the record
+     * @throws IOException if a new segment file couldn't be created
+     */
+    public synchronized long append(byte[] data) throws IOException {
+        if (closed) {
+            throw new IllegalStateException("The log is closed");
+        }
+
+        if (data.length == 0) {
+            throw new IllegalArgumentException("Empty record");
+        }
+
+        if (HEADER_SIZE + data.length > segmentSize) {
+            throw new IllegalArgumentException("Record of " + data.length
+                    + " bytes doesn't fit in a segment of " + segmentSize + " bytes");
+        }
+
+        if (active == null || active.position + HEADER_SIZE + data.length > segmentSize) {
+            roll();
+        }
+
+        final Segment segment = active;
+        final MappedByteBuffer buffer = segment.buffer;
+        final int offset = segment.position;
+
+        final CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length);
+
+        // The length is written last, as a zero length marks the end of a segment
+        buffer.position(offset + HEADER_SIZE);
+        buffer.put(data);
+        buffer.put(offset + STATE_OFFSET, PENDING);
+        buffer.putInt(offset + 4, (int) crc.getValue());
+        buffer.putInt(offset, data.length);
+
+        segment.position = offset + HEADER_SIZE + data.length;
+        segment.pending++;
+        dirty.add(segment);
+        return handle(segment.id, offset);
+    }
+
+    /**
+     * Acknowledges a record, so that it's not recovered when the log is opened again.
+     *
+     * @param handle The record's handle
+     */
+    public synchronized void acknowledge(long handle) {
+        final Segment segment = segments.get((int) (handle >>> 32));
+        if (segment == null) {
+            return;
+        }
+
+        final int offset = (int) handle;
+        if (segment.buffer.get(offset + STATE_OFFSET) == ACKNOWLEDGED) {
+            return;
+        }
+
+        segment.buffer.put(offset + STATE_OFFSET, ACKNOWLEDGED);
+        dirty.add(segment);
+
+        if (--segment.pending == 0 && segment.sealed) {
+            segments.remove(segment.id);
+            dirty.remove(segment);
+            delete(segment);
+        }
+    }
+
+    /**
+     * Writes all modified segments to the storage device.
+     */
+    public void force() {
+        final List<Segment> modified;
+        synchronized (this) {
+            if (dirty.isEmpty()) {
+                return;
+            }
+
+            modified = new ArrayList<>(dirty);
+            dirty.clear();
+        }
+
+        for (Segment segment : modified) {
+            segment.buffer.force();
+        }
+    }
+
+    /**
+     * Returns the number of pending records.
+     *
+     * @return The number of records appended (or recovered) but not yet acknowledged
+     */
+    public synchronized int pending() {
+        int pending = 0;
+        for (Segment segment : segments.values()) {
+            pending += segment.pending;
+        }
+        return pending;
+    }
+
+    @Override
+    public void close() {
+        force();
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+        unlock();
+    }
+
+    private void roll() throws IOException {
+        if (active != null) {
+            active.sealed = true;
+            if (active.pending == 0) {
+                segments.remove(active.id);
+                dirty.remove(active);
+                delete(active);
+            }
+        }
+
+        final int id = nextId++;
+        final File file = new File(directory, String.format("%010d%s", id, SUFFIX));
+        // Never map over a segment that is already there
+        active = new Segment(id, file, map(file, segmentSize, StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.READ, StandardOpenOption.WRITE));
+        segments.put(id, active);
+    }
+
+    private static MappedByteBuffer map(File file, long size, StandardOpenOption... options) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), options)) {
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+    }
+
+    private static long handle(int segment, int offset) {
+        return ((long) segment << 32) | (offset & 0xFFFFFFFFL);
+    }
+
+    private static void delete(Segment segment) {
+        // The mapping is released when the buffer is garbage collected. Should the
+        // deletion fail (on Windows, for instance), the segment is simply skipped
+        // the next time the log is opened, as none of its records are pending.
+        //noinspection ResultOfMethodCallIgnored
+        segment.file.delete();
+    }
+}
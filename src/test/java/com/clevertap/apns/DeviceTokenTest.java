@@ -0,0 +1,58 @@
+package com.clevertap.apns;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+class DeviceTokenTest {
+
+    private static final String TOKEN = "00fe0123456789abcdef0123456789abcdef0123456789abcdef0123456789ab";
+
+    @Test
+    void parse() {
+        final DeviceToken token = DeviceToken.parse(TOKEN);
+        assertEquals(32, token.length());
+        assertEquals(0x00, token.toBytes()[0]);
+        assertEquals((byte) 0xFE, token.toBytes()[1]);
+        assertEquals(TOKEN, token.toString());
+        assertSame(token.toString(), token.toString());
+    }
+
+    @Test
+    void parseIsCaseInsensitive() {
+        final DeviceToken token = DeviceToken.parse(TOKEN.toUpperCase());
+        assertEquals(TOKEN, token.toString());
+        assertEquals(DeviceToken.parse(TOKEN), token);
+        assertEquals(DeviceToken.parse(TOKEN).hashCode(), token.hashCode());
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"", "a", "abc", "0g", "g0", "zz", "/0", ":0", "@0", "G0", "`0", "é0", "vaild-device-token"})
+    void rejectsMalformedTokens(String token) {
+        assertFalse(DeviceToken.isValid(token));
+        assertThrows(IllegalArgumentException.class, () -> DeviceToken.parse(token));
+    }
+
+    @Test
+    void ofCopiesBytes() {
+        final byte[] bytes = {0x01, (byte) 0xAB};
+        final DeviceToken token = DeviceToken.of(bytes);
+        bytes[0] = 0;
+        assertEquals("01ab", token.toString());
+        assertThrows(IllegalArgumentException.class, () -> DeviceToken.of(new byte[0]));
+    }
+
+    @Test
+    void notificationWithDeviceToken() {
+        final DeviceToken token = DeviceToken.parse(TOKEN);
+        final Notification notification = Notification.Builder.forToken(token).alertBody("body").build();
+        assertSame(token, notification.getDeviceToken());
+        assertEquals(TOKEN, notification.getToken());
+
+        final Notification decoded = NotificationCodec.decode(NotificationCodec.encode(notification));
+        assertEquals(token, decoded.getDeviceToken());
+        assertEquals(notification.getPayload(), decoded.getPayload());
+    }
+}
@@ -0,0 +1,153 @@
+package com.clevertap.apns;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.UUID;
+import org.junit.jupiter.api.Test;
+
+class NotificationCodecTest {
+
+    static void assertSameNotification(Notification expected, Notification actual) {
+        assertEquals(expected.getPayload(), actual.getPayload());
+        assertEquals(expected.getToken(), actual.getToken());
+        assertEquals(expected.getTopic(), actual.getTopic());
+        assertEquals(expected.getCollapseId(), actual.getCollapseId());
+        assertEquals(expected.getExpiration(), actual.getExpiration());
+        assertEquals(expected.getPriority(), actual.getPriority());
+        assertEquals(expected.getPushType(), actual.getPushType());
+        assertEquals(expected.getUuid(), actual.getUuid());
+        assertEquals(expected.getDeadline(), actual.getDeadline());
+    }
+
+    @Test
+    void roundTrip() {
+        final Notification notification = new Notification.Builder("token")
+                .alertBody("Hello é世界")
+                .topic("com.clevertap.topic")
+                .collapseId("scores")
+                .expiration(1700000000L)
+                .priority(Notification.Priority.POWERCONSIDERATION)
+                .pushType("alert")
+                .uuid(UUID.randomUUID())
+                .deadline(1700000060000L)
+                .build();
+
+        assertSameNotification(notification, NotificationCodec.decode(NotificationCodec.encode(notification)));
+    }
+
+    @Test
+    void roundTripWithDefaults() {
+        final Notification notification = new Notification.Builder("token").build();
+        assertSameNotification(notification, NotificationCodec.decode(NotificationCodec.encode(notification)));
+    }
+
+    @Test
+    void hexTokensAreStoredAsRawBytes() {
+        final String token = "0123456789abcdef0123456789abcdef0123456789abcdef0123456789abcdef";
+        final Notification notification = new Notification.Builder(token).build();
+        final byte[] bytes = NotificationCodec.encode(notification);
+
+        // version, flags, token length, 32 token bytes, payload length, payload
+        assertEquals(2 + 1 + 32 + 1 + notification.getPayload().length(), bytes.length);
+        assertSameNotification(notification, NotificationCodec.decode(bytes));
+    }
+
+    @Test
+    void nonHexTokensArePreserved() {
+        final Notification upper = new Notification.Builder("ABCDEF").build();
+        assertSameNotification(upper, NotificationCodec.decode(NotificationCodec.encode(upper)));
+
+        final Notification odd = new Notification.Builder("abc").build();
+        assertSameNotification(odd, NotificationCodec.decode(NotificationCodec.encode(odd)));
+    }
+
+    @Test
+    void decodesSequentiallyFromDirectBuffer() {
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(4096);
+        for (int i = 0; i < 10; i++) {
+            NotificationCodec.encode(new Notification.Builder("token-" + i)
+                    .alertBody("body " + i).expiration(i).build(), buffer);
+        }
+        buffer.flip();
+
+        for (int i = 0; i < 10; i++) {
+            final Notification notification = NotificationCodec.decode(buffer);
+            assertEquals("token-" + i, notification.getToken());
+            assertEquals(i, notification.getExpiration());
+        }
+        assertFalse(buffer.hasRemaining());
+    }
+
+    @Test
+    void rejectsTruncatedNotifications() {
+        final byte[] bytes = NotificationCodec.encode(new Notification.Builder("token").alertBody("body").build());
+        assertThrows(IllegalArgumentException.class,
+                () -> NotificationCodec.decode(Arrays.copyOf(bytes, bytes.length - 3)));
+    }
+
+    @Test
+    void rejectsUnknownVersion() {
+        final byte[] bytes = NotificationCodec.encode(new Notification.Builder("token").build());
+        bytes[0] = 99;
+        assertThrows(IllegalArgumentException.class, () -> NotificationCodec.decode(bytes));
+    }
+
+    @Test
+    void decodesTheFirstVersion() throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(1);
+            out.writeUTF("token");
+            out.writeBoolean(true);
+            out.writeUTF("com.clevertap.topic");
+            out.writeBoolean(false);
+            out.writeLong(1700000000L);
+            out.writeByte(5);
+            out.writeBoolean(false);
+            out.writeBoolean(true);
+            out.writeLong(1);
+            out.writeLong(2);
+            final byte[] payload = "{}".getBytes(StandardCharsets.UTF_8);
+            out.writeInt(payload.length);
+            out.write(payload);
+        }
+
+        final Notification decoded = NotificationCodec.decode(bytes.toByteArray());
+        assertEquals("token", decoded.getToken());
+        assertEquals("com.clevertap.topic", decoded.getTopic());
+        assertNull(decoded.getCollapseId());
+        assertEquals(1700000000L, decoded.getExpiration());
+        assertEquals(Notification.Priority.POWERCONSIDERATION, decoded.getPriority());
+        assertNull(decoded.getPushType());
+        assertEquals(new UUID(1, 2), decoded.getUuid());
+        assertEquals(-1, decoded.getDeadline());
+        assertEquals("{}", decoded.getPayload());
+    }
+
+    @Test
+    void decodesTheSecondVersion() {
+        final ByteBuffer bytes = ByteBuffer.allocate(64);
+        // A single byte of flags: binary token, topic, UUID and immediate priority
+        bytes.put((byte) 2).put((byte) (128 | 1 | 16 | 32 | 64));
+        bytes.put((byte) 2).put((byte) 0xab).put((byte) 0xcd);
+        bytes.put((byte) 1).put((byte) 't');
+        bytes.putLong(1).putLong(2);
+        bytes.put((byte) 2).put((byte) '{').put((byte) '}');
+        bytes.flip();
+
+        final Notification decoded = NotificationCodec.decode(bytes);
+        assertEquals("abcd", decoded.getToken());
+        assertEquals("t", decoded.getTopic());
+        assertEquals(new UUID(1, 2), decoded.getUuid());
+        assertEquals(Notification.Priority.IMMEDIATE, decoded.getPriority());
+        assertEquals(-1, decoded.getExpiration());
+        assertEquals("{}", decoded.getPayload());
+        assertFalse(bytes.hasRemaining());
+    }
+}
@@ -0,0 +1,58 @@
+package com.clevertap.apns;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.util.Arrays;
+import org.junit.jupiter.api.Test;
+
+class NotificationTemplateTest {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private final NotificationTemplate template = NotificationTemplate.compile(
+            "{\"aps\":{\"alert\":{\"title\":\"{{name}}\",\"body\":\"Hi {{name}}, \\\"{{item}}\\\" is back\"},"
+                    + "\"badge\":{{badge}}},\"item\":{{item}}}");
+
+    @Test
+    void rendersSlots() throws Exception {
+        assertEquals(Arrays.asList("name", "item", "badge"), template.getSlotNames());
+
+        final Notification notification = template.newNotification("token")
+                .set("name", "Jane \"J\" Doe\n")
+                .set("item", "Café")
+                .set("badge", 3)
+                .topic("com.example.app")
+                .collapseId("restock")
+                .build();
+
+        final JsonNode payload = MAPPER.readTree(notification.getPayload());
+        assertEquals("Jane \"J\" Doe\n", payload.at("/aps/alert/title").asText());
+        assertEquals("Hi Jane \"J\" Doe\n, \"Café\" is back", payload.at("/aps/alert/body").asText());
+        assertEquals(3, payload.at("/aps/badge").asInt());
+        assertEquals("Café", payload.at("/item").asText());
+        assertEquals("token", notification.getToken());
+        assertEquals("com.example.app", notification.getTopic());
+        assertEquals("restock", notification.getCollapseId());
+    }
+
+    @Test
+    void matchesTheBuilder() throws Exception {
+        final NotificationTemplate simple = NotificationTemplate.compile(
+                "{\"aps\":{\"alert\":{\"body\":\"{{body}}\"},\"badge\":{{badge}}}}");
+        final String body = "Tab\tand control \u0001 characters";
+
+        final Notification rendered = simple.newNotification("token").set("body", body).set("badge", 7).build();
+        final Notification built = new Notification.Builder("token").alertBody(body).badge(7).build();
+        assertEquals(MAPPER.readTree(built.getPayload()), MAPPER.readTree(rendered.getPayload()));
+    }
+
+    @Test
+    void rejectsMissingValuesAndInvalidTemplates() {
+        assertThrows(IllegalStateException.class, () -> template.newNotification("token").set("name", "x").build());
+        assertThrows(IllegalArgumentException.class, () -> template.newNotification("token").set("other", 1));
+        assertThrows(IllegalArgumentException.class, () -> NotificationTemplate.compile("{\"aps\":{{x}"));
+        assertThrows(IllegalArgumentException.class, () -> NotificationTemplate.compile("{\"aps\":{{x}} {{y}}}"));
+    }
+}
@@ -1,11 +1,15 @@
 package com.clevertap.apns;
 
 import com.clevertap.apns.enums.InterruptionLevel;
+import okhttp3.RequestBody;
+import okio.Buffer;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.params.ParameterizedTest;
 import org.junit.jupiter.params.provider.Arguments;
 import org.junit.jupiter.params.provider.MethodSource;
 
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
 import java.util.stream.Stream;
 
 import static org.junit.jupiter.api.Assertions.*;
@@ -104,4 +108,113 @@ class NotificationTest {
         assertEquals("{\"aps\":{\"alert\":{}}}", notification2.getPayload());
     }
 
-}
\ No newline at end of file
+
+    @Test
+    void payloadSizeIsTheEncodedLength() {
+        Notification.Builder builder = new Notification.Builder("token").alertBody("Héllo \uD83D\uDE00 世界");
+        Notification notification = builder.build();
+
+        int expected = notification.getPayload().getBytes(StandardCharsets.UTF_8).length;
+        assertEquals(expected, notification.getPayloadSize());
+        assertEquals(expected, builder.size());
+    }
+
+    private static String repeat(String s, int times) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < times; i++) {
+            sb.append(s);
+        }
+        return sb.toString();
+    }
+
+    @Test
+    void truncatesOversizedAlertsToFit() {
+        // Multi-byte characters, characters escaped by JSON, and surrogate pairs
+        String body = repeat("é\"世😀a\n", 500);
+        Notification notification = new Notification.Builder("token")
+                .alertBody(body).alertTitle("title").truncateToFit().build();
+
+        assertTrue(notification.getPayloadSize() <= Notification.MAX_PAYLOAD_SIZE);
+        assertTrue(notification.getPayloadSize() > Notification.MAX_PAYLOAD_SIZE - 10);
+        assertTrue(notification.getPayload().contains("\u2026\""));
+        assertTrue(notification.getPayload().contains("\"title\":\"title\""));
+
+        Notification voip = new Notification.Builder("token")
+                .alertBody(body).pushType("voip").truncateToFit().build();
+        assertTrue(voip.getPayloadSize() <= Notification.MAX_VOIP_PAYLOAD_SIZE);
+        assertTrue(voip.getPayloadSize() > Notification.MAX_PAYLOAD_SIZE);
+    }
+
+    @Test
+    void truncatesTheTitleWhenTheBodyIsNotEnough() {
+        Notification notification = new Notification.Builder("token")
+                .alertBody("short").alertTitle(repeat("t", 5000)).truncateToFit().build();
+
+        assertTrue(notification.getPayloadSize() <= Notification.MAX_PAYLOAD_SIZE);
+        assertTrue(notification.getPayload().contains("\"body\":\"\""));
+        assertTrue(notification.getPayload().contains("t\u2026"));
+    }
+
+    @Test
+    void leavesAlertsThatFitAlone() {
+        String body = repeat("b", 5000);
+        assertEquals(body.length() + 29, new Notification.Builder("token").alertBody(body).build().getPayloadSize());
+        assertEquals("{\"aps\":{\"alert\":{\"body\":\"fits\"}}}",
+                new Notification.Builder("token").alertBody("fits").truncateToFit().build().getPayload());
+    }
+
+    @Test
+    void tokenMayBeMissing() {
+        final Notification notification = new Notification.Builder(null).alertBody("Hello").build();
+        assertNull(notification.getToken());
+        assertNull(notification.getDeviceToken());
+    }
+
+    @Test
+    void withTokenSharesThePayload() {
+        final Notification prototype = new Notification.Builder("token")
+                .alertBody("Hello").topic("topic").collapseId("c").expiration(60)
+                .priority(Notification.Priority.IMMEDIATE).uuid(UUID.randomUUID()).build();
+        final DeviceToken deviceToken = DeviceToken.parse("0123456789abcdef0123456789abcdef");
+
+        final Notification copy = prototype.withToken("other");
+        assertSame(prototype.getPayload(), copy.getPayload());
+        assertEquals("other", copy.getToken());
+        assertEquals("topic", copy.getTopic());
+        assertEquals("c", copy.getCollapseId());
+        assertEquals(60, copy.getExpiration());
+        assertEquals(Notification.Priority.IMMEDIATE, copy.getPriority());
+        assertNull(copy.getUuid());
+
+        final Notification parsed = prototype.withToken(deviceToken);
+        assertSame(deviceToken, parsed.getDeviceToken());
+        assertEquals(prototype.getPayloadSize(), parsed.getPayloadSize());
+        assertThrows(NullPointerException.class, () -> prototype.withToken((String) null));
+    }
+
+    @Test
+    void requestBodyIsEncodedOnce() throws Exception {
+        final Notification notification = new Notification.Builder("token").alertBody("héllo").build();
+        final RequestBody body = notification.getRequestBody();
+
+        assertSame(body, notification.getRequestBody());
+        assertSame(body, notification.withToken("other").getRequestBody());
+        assertEquals(notification.getPayloadSize(), body.contentLength());
+        assertEquals("application/json", body.contentType().toString());
+
+        final Buffer buffer = new Buffer();
+        body.writeTo(buffer);
+        body.writeTo(buffer);
+        assertEquals(notification.getPayload() + notification.getPayload(), buffer.readUtf8());
+    }
+
+    @Test
+    void copiesOfAnUnsentPrototypeShareTheRequestBody() {
+        final Notification prototype = new Notification.Builder("token").alertBody("Hello").build();
+
+        final Notification first = prototype.withToken("first");
+        final Notification second = prototype.withToken(DeviceToken.parse("0123456789abcdef0123456789abcdef"));
+        assertSame(first.getRequestBody(), second.getRequestBody());
+        assertSame(prototype.getRequestBody(), first.getRequestBody());
+    }
+}
@@ -0,0 +1,129 @@
+package com.clevertap.apns.clients;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import com.clevertap.apns.ApnsClient;
+import com.clevertap.apns.Notification;
+import com.clevertap.apns.NotificationResponse;
+import okhttp3.OkHttpClient;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+class ApnsClientRegistryTest {
+
+    @Test
+    void createsClientsLazilyOverASharedTransport() throws Exception {
+        try (MockWebServer server = new MockWebServer()) {
+            server.enqueue(new MockResponse());
+            server.enqueue(new MockResponse());
+            server.enqueue(new MockResponse());
+
+            final OkHttpClient transport = new OkHttpClient();
+            final ApnsClientRegistry registry = new ApnsClientRegistry(transport, false,
+                    TestClients.gatewayUrl(server), false, 10);
+            registry.registerToken("a", TestClients.AUTH_KEY, "teamA", TestClients.KEY_ID, "com.example.a");
+            registry.registerToken("b", TestClients.AUTH_KEY, "teamA", TestClients.KEY_ID, "com.example.b");
+            registry.registerToken("c", TestClients.AUTH_KEY, "teamC", TestClients.KEY_ID, "com.example.c");
+            assertEquals(0, registry.getClientCount());
+
+            final ApnsClient a = registry.get("a");
+            assertSame(a, registry.get("a"));
+            assertSame(transport.dispatcher(), a.getHttpClient().dispatcher());
+            assertSame(a.getHttpClient().connectionPool(), registry.get("b").getHttpClient().connectionPool());
+            assertNotSame(a.getHttpClient().connectionPool(), registry.get("c").getHttpClient().connectionPool());
+
+            final NotificationResponse response = a.push(new Notification.Builder("token").build());
+            assertEquals(200, response.getHttpStatusCode());
+            registry.get("b").push(new Notification.Builder("token").build());
+            registry.get("c").push(new Notification.Builder("token").build());
+
+            final RecordedRequest first = server.takeRequest();
+            final RecordedRequest second = server.takeRequest();
+            final RecordedRequest third = server.takeRequest();
+            assertEquals("com.example.a", first.getHeader("apns-topic"));
+            assertEquals("com.example.b", second.getHeader("apns-topic"));
+            assertEquals(1, second.getSequenceNumber(), "The team's tenants share a connection");
+            assertEquals(0, third.getSequenceNumber(), "Other teams use their own connections");
+            assertEquals(3, registry.getClientCount());
+        }
+    }
+
+    @Test
+    void evictsLeastRecentlyUsedClients() throws Exception {
+        final ApnsClientRegistry registry = new ApnsClientRegistry(new OkHttpClient(), false, true, 2);
+        for (String tenant : new String[]{"a", "b", "c"}) {
+            registry.registerToken(tenant, TestClients.AUTH_KEY, TestClients.TEAM_ID, TestClients.KEY_ID, tenant);
+        }
+
+        final ApnsClient a = registry.get("a");
+        final ApnsClient b = registry.get("b");
+        assertSame(a, registry.get("a"));
+        registry.get("c");
+
+        assertEquals(2, registry.getClientCount());
+        assertEquals(1, registry.getEvictedCount());
+        assertSame(a, registry.get("a"));
+        assertNotSame(b, registry.get("b"));
+        assertFalse(registry.get("b").isSynchronous());
+    }
+
+    @Test
+    void forgetsUnregisteredTenants() throws Exception {
+        final ApnsClientRegistry registry = new ApnsClientRegistry(new OkHttpClient(), false, false, 2);
+        registry.registerToken("a", TestClients.AUTH_KEY, TestClients.TEAM_ID, TestClients.KEY_ID, "a");
+        registry.get("a");
+        registry.unregister("a");
+
+        assertEquals(0, registry.getClientCount());
+        assertThrows(IllegalArgumentException.class, () -> registry.get("a"));
+    }
+
+    @Test
+    void concurrentRequestsShareOneClient() throws Exception {
+        final ApnsClientRegistry registry = new ApnsClientRegistry(new OkHttpClient(), false, true, 2);
+        registry.registerToken("a", TestClients.AUTH_KEY, TestClients.TEAM_ID, TestClients.KEY_ID, "a");
+
+        final ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            final CountDownLatch start = new CountDownLatch(1);
+            final List<Future<ApnsClient>> gets = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                gets.add(executor.submit(() -> {
+                    start.await();
+                    return registry.get("a");
+                }));
+            }
+            start.countDown();
+
+            final ApnsClient a = registry.get("a");
+            for (Future<ApnsClient> get : gets) {
+                assertSame(a, get.get());
+            }
+            assertEquals(1, registry.getClientCount());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    void failedClientsAreCreatedAgain() throws Exception {
+        final ApnsClientRegistry registry = new ApnsClientRegistry(new OkHttpClient(), false, true, 2);
+        registry.registerCertificate("bad", new byte[]{1, 2, 3}, "password", "bad");
+        registry.registerToken("a", TestClients.AUTH_KEY, TestClients.TEAM_ID, TestClients.KEY_ID, "a");
+
+        assertThrows(IOException.class, () -> registry.get("bad"));
+        assertNotNull(registry.get("a"));
+        assertThrows(IOException.class, () -> registry.get("bad"), "Failures aren't cached");
+        assertEquals(1, registry.getClientCount());
+    }
+}
@@ -0,0 +1,145 @@
+package com.clevertap.apns.clients;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import com.clevertap.apns.Notification;
+import com.clevertap.apns.NotificationResult;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import org.junit.jupiter.api.Test;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+class ApnsProcessorTest {
+
+    /**
+     * Publishes a fixed number of notifications, keeping track of the largest
+     * number that had been requested but not yet answered with a result.
+     */
+    private static class NotificationPublisher implements Publisher<Notification> {
+        private final int count;
+        private final AtomicInteger emitted = new AtomicInteger();
+        private final AtomicLong outstanding = new AtomicLong();
+        private final AtomicLong maxOutstanding = new AtomicLong();
+
+        NotificationPublisher(int count) {
+            this.count = count;
+        }
+
+        @Override
+        public void subscribe(Subscriber<? super Notification> subscriber) {
+            subscriber.onSubscribe(new Subscription() {
+                private boolean completed;
+
+                @Override
+                public synchronized void request(long n) {
+                    if (completed) {
+                        return;
+                    }
+
+                    maxOutstanding.accumulateAndGet(outstanding.addAndGet(n), Math::max);
+                    for (long i = 0; i < n && emitted.get() < count; i++) {
+                        subscriber.onNext(new Notification.Builder("token-" + emitted.incrementAndGet())
+                                .alertBody("body").build());
+                    }
+
+                    if (emitted.get() == count) {
+                        completed = true;
+                        subscriber.onComplete();
+                    }
+                }
+
+                @Override
+                public void cancel() {
+                }
+            });
+        }
+
+        void resultDelivered() {
+            outstanding.decrementAndGet();
+        }
+    }
+
+    @Test
+    void demandIsBoundedByInFlightSlots() throws Exception {
+        try (MockWebServer server = new MockWebServer()) {
+            server.setDispatcher(new Dispatcher() {
+                @Override
+                public MockResponse dispatch(RecordedRequest request) {
+                    return request.getPath().endsWith("-3")
+                            ? new MockResponse().setResponseCode(400).setBody("{\"reason\":\"BadDeviceToken\"}")
+                            : new MockResponse().setResponseCode(200);
+                }
+            });
+
+            final NotificationPublisher publisher = new NotificationPublisher(20);
+            final ApnsProcessor processor = new ApnsProcessor(TestClients.asyncClient(server), 4);
+            final List<NotificationResult> results = new CopyOnWriteArrayList<>();
+            final CountDownLatch done = new CountDownLatch(1);
+
+            publisher.subscribe(processor);
+            processor.subscribe(new Subscriber<NotificationResult>() {
+                private Subscription subscription;
+
+                @Override
+                public void onSubscribe(Subscription s) {
+                    subscription = s;
+                    s.request(1);
+                }
+
+                @Override
+                public void onNext(NotificationResult result) {
+                    results.add(result);
+                    publisher.resultDelivered();
+                    subscription.request(1);
+                }
+
+                @Override
+                public void onError(Throwable t) {
+                    done.countDown();
+                }
+
+                @Override
+                public void onComplete() {
+                    done.countDown();
+                }
+            });
+
+            assertTrue(done.await(10, TimeUnit.SECONDS));
+            assertEquals(20, results.size());
+            assertTrue(publisher.maxOutstanding.get() <= 4, "Outstanding: " + publisher.maxOutstanding);
+
+            for (NotificationResult result : results) {
+                final boolean rejected = result.getNotification().getToken().equals("token-3");
+                assertEquals(!rejected, result.isSuccess());
+            }
+        }
+    }
+
+    @Test
+    void nothingIsRequestedWithoutAResultSubscriber() throws Exception {
+        try (MockWebServer server = new MockWebServer()) {
+            final NotificationPublisher publisher = new NotificationPublisher(5);
+            publisher.subscribe(new ApnsProcessor(TestClients.asyncClient(server), 4));
+
+            assertEquals(0, publisher.maxOutstanding.get());
+        }
+    }
+
+    @Test
+    void requiresAsynchronousClient() throws Exception {
+        try (MockWebServer server = new MockWebServer()) {
+            assertThrows(IllegalArgumentException.class,
+                    () -> new ApnsProcessor(TestClients.builder(server).inSynchronousMode().build(), 1));
+        }
+    }
+}
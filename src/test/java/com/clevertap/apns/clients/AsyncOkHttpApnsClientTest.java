@@ -0,0 +1,100 @@
+package com.clevertap.apns.clients;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import com.clevertap.apns.Notification;
+import com.clevertap.apns.NotificationResponse;
+import com.clevertap.apns.NotificationStatusListener;
+import com.clevertap.apns.enums.FailureReason;
+import com.clevertap.apns.internal.VirtualThreads;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import okhttp3.OkHttpClient;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import org.junit.jupiter.api.Test;
+
+class AsyncOkHttpApnsClientTest {
+
+    @Test
+    void reportsStatusesAsPrimitives() throws Exception {
+        try (MockWebServer server = new MockWebServer()) {
+            server.setDispatcher(new Dispatcher() {
+                @Override
+                public MockResponse dispatch(RecordedRequest request) {
+                    return request.getPath().endsWith("/gone")
+                            ? new MockResponse().setResponseCode(410)
+                                    .setBody("{\"reason\":\"Unregistered\",\"timestamp\":1600000000000}")
+                            : new MockResponse().setResponseCode(200);
+                }
+            });
+
+            final AsyncOkHttpApnsClient client = TestClients.asyncClient(server);
+            final AtomicLongArray statuses = new AtomicLongArray(2);
+            final AtomicLongArray reasons = new AtomicLongArray(2);
+            final CountDownLatch latch = new CountDownLatch(2);
+            final NotificationStatusListener listener = (correlationId, status, reason) -> {
+                statuses.set((int) correlationId, status);
+                reasons.set((int) correlationId, reason);
+                latch.countDown();
+            };
+
+            client.push(new Notification.Builder("token").alertBody("body").build(), 0, listener);
+            client.push(new Notification.Builder("gone").alertBody("body").build(), 1, listener);
+            assertTrue(latch.await(5, TimeUnit.SECONDS));
+
+            assertEquals(200, statuses.get(0));
+            assertEquals(NotificationStatusListener.NO_REASON, reasons.get(0));
+            assertEquals(410, statuses.get(1));
+            assertEquals(FailureReason.Unregistered.ordinal(), reasons.get(1));
+        }
+    }
+
+    @Test
+    void otherClientsAdaptTheirListeners() {
+        final StubApnsClient stub = new StubApnsClient();
+        final long[] outcome = new long[3];
+        final NotificationStatusListener listener = (correlationId, status, reason) -> {
+            outcome[0] = correlationId;
+            outcome[1] = status;
+            outcome[2] = reason;
+        };
+
+        stub.push(new Notification.Builder("token").build(), 42, listener);
+        stub.failNext(new NotificationResponse(null, 400, "{\"reason\": \"BadDeviceToken\"}", null));
+        assertArrayEquals(new long[]{42, 400, FailureReason.BadDeviceToken.ordinal()}, outcome);
+
+        stub.push(new Notification.Builder("token").build(), 43, listener);
+        stub.succeedNext();
+        assertArrayEquals(new long[]{43, 200, NotificationStatusListener.NO_REASON}, outcome);
+    }
+
+    @Test
+    void parsesFailureReasons() {
+        assertEquals(FailureReason.TooManyRequests, FailureReason.parse("{\"reason\":\"TooManyRequests\"}"));
+        assertEquals(FailureReason.Unknown, FailureReason.parse("{\"reason\":\"SomethingNew\"}"));
+        assertEquals(FailureReason.Unknown, FailureReason.parse("{\"reason\":"));
+        assertEquals(FailureReason.Unknown, FailureReason.parse("[\"BadDeviceToken\", \"reason\"]"));
+        assertEquals(FailureReason.Unknown, FailureReason.parse(""));
+        assertEquals(FailureReason.Unknown, FailureReason.parse(null));
+    }
+
+    @Test
+    void virtualThreadsRequireTheirOwnAsynchronousDispatcher() throws Exception {
+        final ApnsClientBuilder builder = new ApnsClientBuilder()
+                .withApnsAuthKey(TestClients.AUTH_KEY)
+                .withTeamID(TestClients.TEAM_ID)
+                .withKeyID(TestClients.KEY_ID)
+                .withVirtualThreads();
+        assertThrows(IllegalArgumentException.class, builder::build);
+
+        final int maxRequests = builder.inAsynchronousMode().build().getHttpClient().dispatcher().getMaxRequests();
+        assertEquals(VirtualThreads.isAvailable() ? 1000 : 64, maxRequests);
+
+        builder.withOkHttpClientBuilder(new OkHttpClient.Builder());
+        assertThrows(IllegalArgumentException.class, builder::build);
+    }
+}
@@ -0,0 +1,199 @@
+package com.clevertap.apns.clients;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import com.clevertap.apns.Notification;
+import com.clevertap.apns.NotificationResponse;
+import com.clevertap.apns.NotificationResponseListener;
+import com.clevertap.apns.exceptions.CircuitOpenException;
+import com.clevertap.apns.exceptions.NotificationExpiredException;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.jupiter.api.Test;
+
+class CircuitBreakerTest {
+
+    private static final NotificationResponse UNAVAILABLE = new NotificationResponse(null, 503, null, null);
+
+    private final AtomicLong clock = new AtomicLong(1_000_000);
+
+    private CircuitBreaker breaker(long openMillis) {
+        return new CircuitBreaker(0.5, 4, 1000, openMillis, 2, clock::get);
+    }
+
+    private static long acquire(CircuitBreaker breaker) {
+        final long permit = breaker.tryAcquire();
+        assertNotEquals(CircuitBreaker.NOT_PERMITTED, permit);
+        return permit;
+    }
+
+    @Test
+    void opensAndProbesForRecovery() {
+        final CircuitBreaker breaker = breaker(60_000);
+        final List<CircuitBreaker.State> states = new CopyOnWriteArrayList<>();
+        breaker.addStateListener(states::add);
+
+        for (int i = 0; i < 3; i++) {
+            breaker.onResult(acquire(breaker), i == 0 ? null : UNAVAILABLE);
+        }
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState(), "Too few outcomes yet");
+
+        // A rejected token shows the gateway is up
+        breaker.onResult(acquire(breaker), new NotificationResponse(null, 400, "{\"reason\":\"BadDeviceToken\"}", null));
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        breaker.onResult(acquire(breaker), new NotificationResponse(null, -1, null, new IOException("Connection refused")));
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertEquals(CircuitBreaker.NOT_PERMITTED, breaker.tryAcquire());
+
+        clock.addAndGet(60_000);
+        final long first = acquire(breaker);
+        final long second = acquire(breaker);
+        assertEquals(CircuitBreaker.NOT_PERMITTED, breaker.tryAcquire(), "Only a trickle of probes is let through");
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+
+        breaker.onResult(first, null);
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        breaker.onResult(second, null);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        assertEquals(1, breaker.getOpenedCount());
+        assertEquals(3, states.size());
+        assertEquals(CircuitBreaker.State.CLOSED, states.get(2));
+    }
+
+    @Test
+    void failedProbeReopens() {
+        final CircuitBreaker breaker = breaker(60_000);
+        for (int i = 0; i < 4; i++) {
+            breaker.onResult(acquire(breaker), UNAVAILABLE);
+        }
+        clock.addAndGet(60_000);
+
+        final long first = acquire(breaker);
+        acquire(breaker);
+        // Notifications failed locally don't count, but free their probe
+        breaker.onResult(first, new NotificationResponse(null, -1, null, new NotificationExpiredException("expired")));
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        final long third = acquire(breaker);
+
+        breaker.onResult(third, UNAVAILABLE);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertEquals(2, breaker.getOpenedCount());
+    }
+
+    @Test
+    void earlierOutcomesArentProbes() {
+        final CircuitBreaker breaker = breaker(60_000);
+        final long slow = acquire(breaker);
+        for (int i = 0; i < 4; i++) {
+            breaker.onResult(acquire(breaker), UNAVAILABLE);
+        }
+        clock.addAndGet(60_000);
+
+        final long probe = acquire(breaker);
+        final long other = acquire(breaker);
+        // A success sent while closed arrives late: it neither counts as a probe nor frees one
+        breaker.onResult(slow, null);
+        assertEquals(CircuitBreaker.NOT_PERMITTED, breaker.tryAcquire());
+        breaker.onResult(probe, null);
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+
+        // Nor do probes from an earlier half-open period
+        breaker.onResult(other, UNAVAILABLE);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        clock.addAndGet(60_000);
+        final long next = acquire(breaker);
+        breaker.onResult(probe, null);
+        breaker.onResult(other, null);
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        breaker.release(next);
+        acquire(breaker);
+        acquire(breaker);
+        assertEquals(CircuitBreaker.NOT_PERMITTED, breaker.tryAcquire());
+    }
+
+    @Test
+    void oldOutcomesLeaveTheWindow() {
+        final CircuitBreaker breaker = breaker(60_000);
+        breaker.onResult(acquire(breaker), UNAVAILABLE);
+        breaker.onResult(acquire(breaker), UNAVAILABLE);
+        breaker.onResult(acquire(breaker), UNAVAILABLE);
+
+        clock.addAndGet(2000);
+        breaker.onResult(acquire(breaker), UNAVAILABLE);
+        breaker.onResult(acquire(breaker), null);
+        breaker.onResult(acquire(breaker), null);
+        breaker.onResult(acquire(breaker), null);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    void failsFastWithoutAQueue() {
+        final CircuitBreaker breaker = breaker(60_000);
+        final StubApnsClient stub = new StubApnsClient();
+        final CircuitBreakerApnsClient client = new CircuitBreakerApnsClient(stub, breaker);
+        final List<NotificationResponse> failures = new CopyOnWriteArrayList<>();
+        final NotificationResponseListener listener = new NotificationResponseListener() {
+            @Override
+            public void onSuccess(Notification notification) {
+            }
+
+            @Override
+            public void onFailure(Notification notification, NotificationResponse response) {
+                failures.add(response);
+            }
+        };
+
+        for (int i = 0; i < 4; i++) {
+            client.push(new Notification.Builder("token").build(), listener);
+            stub.failNext(UNAVAILABLE);
+        }
+        client.push(new Notification.Builder("token").build(), listener);
+
+        assertEquals(4, stub.notifications.size());
+        assertEquals(5, failures.size());
+        assertTrue(failures.get(4).getCause() instanceof CircuitOpenException);
+    }
+
+    @Test
+    void queueHoldsNotificationsWhileOpen() throws Exception {
+        final CircuitBreaker breaker = breaker(50);
+        final StubApnsClient stub = new StubApnsClient();
+        final QueuedApnsClient client = new QueuedApnsClient(stub, 10);
+        client.setCircuitBreaker(breaker);
+        final NotificationResponseListener listener = new NotificationResponseListener() {
+            @Override
+            public void onSuccess(Notification notification) {
+            }
+
+            @Override
+            public void onFailure(Notification notification, NotificationResponse response) {
+            }
+        };
+
+        for (int i = 0; i < 4; i++) {
+            client.push(new Notification.Builder("token").build(), listener);
+        }
+        for (int i = 0; i < 4; i++) {
+            stub.failNext(UNAVAILABLE);
+        }
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+
+        for (int i = 0; i < 5; i++) {
+            client.push(new Notification.Builder("token").build(), listener);
+        }
+        assertEquals(5, client.getQueuedCount());
+        assertEquals(4, stub.notifications.size());
+
+        // Once the breaker is half-open, two probes go out, and the rest follow when they succeed
+        clock.addAndGet(50);
+        stub.awaitPushes(6);
+        assertEquals(3, client.getQueuedCount());
+        stub.succeedNext();
+        stub.succeedNext();
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        assertEquals(0, client.getQueuedCount());
+        assertEquals(9, stub.notifications.size());
+    }
+}
@@ -0,0 +1,124 @@
+package com.clevertap.apns.clients;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import com.clevertap.apns.InvalidToken;
+import com.clevertap.apns.Notification;
+import com.clevertap.apns.NotificationResponse;
+import com.clevertap.apns.NotificationResponseListener;
+import com.clevertap.apns.enums.FailureReason;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+
+class InvalidTokenCollectorTest {
+
+    private static final NotificationResponseListener IGNORING = new NotificationResponseListener() {
+        @Override
+        public void onSuccess(Notification notification) {
+        }
+
+        @Override
+        public void onFailure(Notification notification, NotificationResponse response) {
+        }
+    };
+
+    private static void awaitBatches(List<List<InvalidToken>> batches, int count) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (batches.size() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(count, batches.size());
+    }
+
+    @Test
+    void flushesFullBatches() throws Exception {
+        final StubApnsClient stub = new StubApnsClient();
+        final List<List<InvalidToken>> batches = new CopyOnWriteArrayList<>();
+        final AtomicInteger failures = new AtomicInteger();
+
+        try (InvalidTokenCollector collector = new InvalidTokenCollector(stub, batches::add, 3, 60_000)) {
+            for (int i = 0; i < 8; i++) {
+                collector.push(new Notification.Builder("token-" + i).topic("topic").build(),
+                        new NotificationResponseListener() {
+                            @Override
+                            public void onSuccess(Notification notification) {
+                            }
+
+                            @Override
+                            public void onFailure(Notification notification, NotificationResponse response) {
+                                failures.incrementAndGet();
+                            }
+                        });
+            }
+
+            stub.failNext(new NotificationResponse(null, 410, "{\"reason\":\"Unregistered\",\"timestamp\": 1600000000000}", null));
+            stub.failNext(new NotificationResponse(null, 400, "{\"reason\":\"BadDeviceToken\"}", null));
+            stub.failNext(new NotificationResponse(null, 400, "{\"reason\":\"BadTopic\"}", null));
+            stub.succeedNext();
+            stub.failNext(new NotificationResponse(null, 410, "{\"reason\":\"ExpiredToken\"}", null));
+            stub.failNext(new NotificationResponse(null, 410, null, null));
+            stub.failNext(new NotificationResponse(null, 503, null, null));
+            stub.failNext(new NotificationResponse(null, 410, "{\"reason\":\"Unregistered\"}", null));
+
+            awaitBatches(batches, 1);
+            assertEquals(7, failures.get());
+            assertEquals(5, collector.getCollectedCount());
+
+            final InvalidToken first = batches.get(0).get(0);
+            assertEquals("token-0", first.getToken());
+            assertEquals("topic", first.getTopic());
+            assertEquals(1600000000000L, first.getTimestamp());
+            assertEquals(FailureReason.Unregistered, first.getReason());
+            assertEquals("token-1", batches.get(0).get(1).getToken());
+            assertEquals(-1, batches.get(0).get(1).getTimestamp());
+            assertEquals("token-4", batches.get(0).get(2).getToken());
+        }
+
+        // Closing flushes what's left
+        assertEquals(2, batches.size());
+        assertEquals(2, batches.get(1).size());
+        assertEquals(FailureReason.Unknown, batches.get(1).get(0).getReason());
+    }
+
+    @Test
+    void flushesOnAnInterval() throws Exception {
+        final StubApnsClient stub = new StubApnsClient();
+        final List<List<InvalidToken>> batches = new CopyOnWriteArrayList<>();
+
+        try (InvalidTokenCollector collector = new InvalidTokenCollector(stub, batches::add, "default", 100, 20)) {
+            collector.push(new Notification.Builder("token").build(), IGNORING);
+            stub.failNext(new NotificationResponse(null, 410, "{\"reason\":\"Unregistered\"}", null));
+
+            awaitBatches(batches, 1);
+            assertEquals(1, batches.get(0).size());
+            // Sent to the client's default topic
+            assertEquals("default", batches.get(0).get(0).getTopic());
+        }
+    }
+
+    @Test
+    void reportsExceptionsFromTheSink() {
+        final StubApnsClient stub = new StubApnsClient();
+        final List<Throwable> uncaught = new CopyOnWriteArrayList<>();
+        final InvalidTokenCollector collector = new InvalidTokenCollector(stub, tokens -> {
+            throw new IllegalStateException("sink");
+        }, 100, 60_000);
+        collector.push(new Notification.Builder("token").build(), IGNORING);
+        stub.failNext(new NotificationResponse(null, 410, "{\"reason\":\"Unregistered\"}", null));
+
+        // The last batch is flushed by the thread closing the collector
+        final Thread thread = Thread.currentThread();
+        final Thread.UncaughtExceptionHandler previous = thread.getUncaughtExceptionHandler();
+        thread.setUncaughtExceptionHandler((t, e) -> uncaught.add(e));
+        try {
+            collector.close();
+        } finally {
+            thread.setUncaughtExceptionHandler(previous);
+        }
+
+        assertEquals(1, uncaught.size());
+        assertEquals("sink", uncaught.get(0).getMessage());
+    }
+}
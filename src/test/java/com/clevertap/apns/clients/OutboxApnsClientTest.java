@@ -0,0 +1,195 @@
+package com.clevertap.apns.clients;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import com.clevertap.apns.ApnsClient;
+import com.clevertap.apns.Notification;
+import com.clevertap.apns.NotificationCodec;
+import com.clevertap.apns.NotificationResponse;
+import com.clevertap.apns.NotificationResponseListener;
+import com.clevertap.apns.internal.SegmentLog;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import okhttp3.OkHttpClient;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class OutboxApnsClientTest {
+
+    @TempDir
+    File directory;
+
+    static class CountingListener implements NotificationResponseListener {
+        final CountDownLatch latch;
+
+        CountingListener(int count) {
+            latch = new CountDownLatch(count);
+        }
+
+        @Override
+        public void onSuccess(Notification notification) {
+            latch.countDown();
+        }
+
+        @Override
+        public void onFailure(Notification notification, NotificationResponse response) {
+            latch.countDown();
+        }
+    }
+
+    private static Notification notification(String token) {
+        return new Notification.Builder(token).alertBody("body").build();
+    }
+
+    @Test
+    void acknowledgesAnsweredNotifications() throws Exception {
+        final StubApnsClient stub = new StubApnsClient();
+        final CountingListener listener = new CountingListener(3);
+
+        try (OutboxApnsClient outbox = new OutboxApnsClient(stub, directory, 4096)) {
+            outbox.push(notification("a"), listener);
+            outbox.push(notification("b"), listener);
+            outbox.push(notification("c"), listener);
+
+            stub.awaitPushes(3);
+            assertEquals(3, outbox.getUnacknowledgedCount());
+
+            stub.succeedAll();
+            assertTrue(listener.latch.await(5, TimeUnit.SECONDS));
+            assertEquals(0, outbox.getUnacknowledgedCount());
+        }
+
+        try (OutboxApnsClient reopened = new OutboxApnsClient(new StubApnsClient(), directory, 4096)) {
+            assertEquals(0, reopened.replayUnacknowledged(new CountingListener(0)));
+        }
+    }
+
+    @Test
+    void replaysUnansweredNotificationsAfterRestart() throws Exception {
+        final StubApnsClient crashed = new StubApnsClient();
+        final OutboxApnsClient outbox = new OutboxApnsClient(crashed, directory, 4096);
+        outbox.push(notification("a"), new CountingListener(1));
+        outbox.push(notification("b"), new CountingListener(1));
+        crashed.awaitPushes(2);
+
+        // The JVM "dies" here: nothing is answered. Closing the outbox only releases its
+        // directory, as the process exiting would
+        outbox.close();
+        final StubApnsClient restarted = new StubApnsClient();
+        try (OutboxApnsClient reopened = new OutboxApnsClient(restarted, directory, 4096)) {
+            final CountingListener listener = new CountingListener(2);
+            assertEquals(2, reopened.replayUnacknowledged(listener));
+
+            restarted.awaitPushes(2);
+            assertEquals("a", restarted.notifications.get(0).getToken());
+            assertEquals("b", restarted.notifications.get(1).getToken());
+
+            restarted.succeedAll();
+            assertTrue(listener.latch.await(5, TimeUnit.SECONDS));
+            assertEquals(0, reopened.getUnacknowledgedCount());
+        }
+    }
+
+    @Test
+    void failsNotificationsWhenTheOutboxCantBeWritten() throws Exception {
+        final StubApnsClient stub = new StubApnsClient();
+        final List<NotificationResponse> failures = new CopyOnWriteArrayList<>();
+        final CountDownLatch failed = new CountDownLatch(1);
+
+        try (OutboxApnsClient outbox = new OutboxApnsClient(stub, directory, 4096) {
+            @Override
+            void force() {
+                throw new UncheckedIOException(new IOException("No space left on device"));
+            }
+        }) {
+            outbox.push(notification("a"), new CountingListener(1) {
+                @Override
+                public void onFailure(Notification notification, NotificationResponse response) {
+                    failures.add(response);
+                    failed.countDown();
+                }
+            });
+
+            assertTrue(failed.await(5, TimeUnit.SECONDS));
+            assertTrue(failures.get(0).getCause() instanceof UncheckedIOException);
+            assertTrue(stub.notifications.isEmpty());
+            assertThrows(IllegalStateException.class, () -> outbox.push(notification("b"), new CountingListener(1)));
+        }
+    }
+
+    @Test
+    void keepsCommittingAfterAListenerThrows() throws Exception {
+        final StubApnsClient stub = new StubApnsClient() {
+            @Override
+            public void push(Notification notification, NotificationResponseListener listener) {
+                if (notification.getToken().equals("rejected")) {
+                    throw new IllegalStateException("rejected");
+                }
+                super.push(notification, listener);
+            }
+        };
+
+        try (OutboxApnsClient outbox = new OutboxApnsClient(stub, directory, 4096)) {
+            outbox.push(notification("rejected"), new CountingListener(1) {
+                @Override
+                public void onFailure(Notification notification, NotificationResponse response) {
+                    throw new IllegalArgumentException("broken listener");
+                }
+            });
+            outbox.push(notification("a"), new CountingListener(1));
+            stub.awaitPushes(1);
+            assertEquals("a", stub.notifications.get(0).getToken());
+        }
+    }
+
+    @Test
+    void skipsRecordsThatCantBeDecoded() throws Exception {
+        try (SegmentLog log = new SegmentLog(directory, 4096)) {
+            log.append(new byte[]{99, 0, 0});
+            log.append(NotificationCodec.encode(notification("a")));
+        }
+
+        final List<Throwable> uncaught = new CopyOnWriteArrayList<>();
+        final Thread thread = Thread.currentThread();
+        final Thread.UncaughtExceptionHandler previous = thread.getUncaughtExceptionHandler();
+        final StubApnsClient stub = new StubApnsClient();
+        try (OutboxApnsClient outbox = new OutboxApnsClient(stub, directory, 4096)) {
+            thread.setUncaughtExceptionHandler((t, e) -> uncaught.add(e));
+            try {
+                assertEquals(1, outbox.replayUnacknowledged(new CountingListener(1)));
+            } finally {
+                thread.setUncaughtExceptionHandler(previous);
+            }
+
+            stub.awaitPushes(1);
+            assertEquals("a", stub.notifications.get(0).getToken());
+            assertEquals(1, uncaught.size());
+            assertEquals(1, outbox.getUnacknowledgedCount());
+        }
+    }
+
+    @Test
+    void refusesADirectoryInUse() throws Exception {
+        final StubApnsClient stub = new StubApnsClient();
+        try (OutboxApnsClient outbox = new OutboxApnsClient(stub, directory, 4096)) {
+            outbox.push(notification("a"), new CountingListener(1));
+            stub.awaitPushes(1);
+
+            // A second outbox would replay the same notifications and write over the first's segments
+            assertThrows(IOException.class, () -> new OutboxApnsClient(new StubApnsClient(), directory, 4096));
+            assertEquals(1, outbox.getUnacknowledgedCount());
+        }
+    }
+
+    @Test
+    void requiresAsynchronousClient() {
+        final ApnsClient sync = new SyncOkHttpApnsClient("authKey", "teamID", "keyID", true,
+                "topic", new OkHttpClient.Builder());
+        assertThrows(IllegalArgumentException.class, () -> new OutboxApnsClient(sync, directory));
+    }
+}
@@ -0,0 +1,192 @@
+package com.clevertap.apns.clients;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import com.clevertap.apns.Notification;
+import com.clevertap.apns.NotificationResponse;
+import com.clevertap.apns.NotificationResponseListener;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+
+class PipelinedApnsClientTest {
+
+    private static class RecordingListener implements NotificationResponseListener {
+        final Set<String> threads = ConcurrentHashMap.newKeySet();
+        final AtomicInteger successes = new AtomicInteger();
+        final AtomicInteger failures = new AtomicInteger();
+        final CountDownLatch done;
+
+        RecordingListener(int expected) {
+            done = new CountDownLatch(expected);
+        }
+
+        @Override
+        public void onSuccess(Notification notification) {
+            threads.add(Thread.currentThread().getName());
+            successes.incrementAndGet();
+            done.countDown();
+        }
+
+        @Override
+        public void onFailure(Notification notification, NotificationResponse response) {
+            threads.add(Thread.currentThread().getName());
+            failures.incrementAndGet();
+            done.countDown();
+        }
+    }
+
+    @Test
+    void deliversOutcomesOnHandlerThreadsInBatches() throws Exception {
+        final StubApnsClient stub = new StubApnsClient();
+        final AtomicInteger batched = new AtomicInteger();
+        final AtomicInteger batchedFailures = new AtomicInteger();
+        final List<Integer> batchSizes = new CopyOnWriteArrayList<>();
+        final RecordingListener listener = new RecordingListener(1000);
+
+        try (PipelinedApnsClient client = new PipelinedApnsClient(stub, 2, 4, batch -> {
+            batchSizes.add(batch.size());
+            for (int i = 0; i < batch.size(); i++) {
+                assertNotNull(batch.getNotification(i));
+                if (!batch.isSuccess(i)) {
+                    assertEquals(410, batch.getResponse(i).getHttpStatusCode());
+                    batchedFailures.incrementAndGet();
+                }
+                batched.incrementAndGet();
+            }
+            assertThrows(IndexOutOfBoundsException.class, () -> batch.getNotification(batch.size()));
+        })) {
+            for (int i = 0; i < 1000; i++) {
+                client.push(new Notification.Builder("token-" + i).build(), listener);
+            }
+
+            final NotificationResponse gone = new NotificationResponse(null, 410, null, null);
+            for (int i = 0; i < 1000; i++) {
+                if (i % 10 == 0) {
+                    stub.failNext(gone);
+                } else {
+                    stub.succeedNext();
+                }
+            }
+
+            assertTrue(listener.done.await(5, TimeUnit.SECONDS));
+            assertEquals(900, listener.successes.get());
+            assertEquals(100, listener.failures.get());
+            assertEquals(1000, batched.get());
+            assertEquals(100, batchedFailures.get());
+            assertTrue(batchSizes.stream().allMatch(size -> size >= 1 && size <= 4));
+            for (String thread : listener.threads) {
+                assertTrue(thread.startsWith("apns-result-handler-"), thread);
+            }
+            client.close();
+            assertEquals(0, client.getBacklog());
+        }
+    }
+
+    @Test
+    void deliversOnTheRespondingThreadOnceClosed() {
+        final StubApnsClient stub = new StubApnsClient();
+        final RecordingListener listener = new RecordingListener(1);
+        final PipelinedApnsClient client = new PipelinedApnsClient(stub, 1, 8);
+
+        client.push(new Notification.Builder("token").build(), listener);
+        client.close();
+        assertThrows(IllegalStateException.class,
+                () -> client.push(new Notification.Builder("token").build(), listener));
+
+        stub.succeedNext();
+        assertEquals(1, listener.successes.get());
+        assertTrue(listener.threads.contains(Thread.currentThread().getName()));
+    }
+
+    @Test
+    void reportsExceptionsFromHandlersAndListeners() {
+        final StubApnsClient stub = new StubApnsClient();
+        final RecordingListener listener = new RecordingListener(1);
+        final List<Throwable> uncaught = new CopyOnWriteArrayList<>();
+        final PipelinedApnsClient client = new PipelinedApnsClient(stub, 1, 8, batch -> {
+            throw new IllegalStateException("handler");
+        });
+        client.push(new Notification.Builder("token").build(), new NotificationResponseListener() {
+            @Override
+            public void onSuccess(Notification notification) {
+                throw new IllegalStateException("listener");
+            }
+
+            @Override
+            public void onFailure(Notification notification, NotificationResponse response) {
+            }
+        });
+        client.push(new Notification.Builder("token").build(), listener);
+        client.close();
+
+        // Once closed, outcomes are delivered on the thread receiving them
+        final Thread thread = Thread.currentThread();
+        final Thread.UncaughtExceptionHandler previous = thread.getUncaughtExceptionHandler();
+        thread.setUncaughtExceptionHandler((t, e) -> uncaught.add(e));
+        try {
+            stub.succeedAll();
+        } finally {
+            thread.setUncaughtExceptionHandler(previous);
+        }
+
+        assertEquals(1, listener.successes.get());
+        assertEquals(3, uncaught.size());
+        assertEquals("handler", uncaught.get(0).getMessage());
+        assertEquals("listener", uncaught.get(1).getMessage());
+        assertEquals("handler", uncaught.get(2).getMessage());
+    }
+
+    @Test
+    void listenersCanRetryIntoAClientThatFailsSynchronously() throws Exception {
+        final NotificationResponse refused = new NotificationResponse(null, -1, null, null);
+        final StubApnsClient stub = new StubApnsClient() {
+            @Override
+            public void push(Notification notification, NotificationResponseListener listener) {
+                if (notification.getToken().equals("retry")) {
+                    listener.onFailure(notification, refused);
+                } else {
+                    super.push(notification, listener);
+                }
+            }
+        };
+        final RecordingListener retried = new RecordingListener(1);
+
+        try (PipelinedApnsClient client = new PipelinedApnsClient(stub, 1, 1)) {
+            client.push(new Notification.Builder("first").build(), new NotificationResponseListener() {
+                @Override
+                public void onSuccess(Notification notification) {
+                }
+
+                @Override
+                public void onFailure(Notification notification, NotificationResponse response) {
+                    // The only slot is still taken by this outcome
+                    client.push(new Notification.Builder("retry").build(), retried);
+                }
+            });
+            stub.failNext(refused);
+
+            assertTrue(retried.done.await(5, TimeUnit.SECONDS));
+            assertEquals(1, retried.failures.get());
+            assertTrue(retried.threads.contains("apns-result-handler-0"));
+        }
+    }
+
+    @Test
+    void requiresAnAsynchronousClient() throws Exception {
+        final ApnsClientBuilder builder = new ApnsClientBuilder()
+                .withApnsAuthKey(TestClients.AUTH_KEY)
+                .withTeamID(TestClients.TEAM_ID)
+                .withKeyID(TestClients.KEY_ID)
+                .withResultHandlers(1);
+        assertThrows(IllegalArgumentException.class, builder::build);
+        try (PipelinedApnsClient client = (PipelinedApnsClient) builder.inAsynchronousMode().build()) {
+            assertFalse(client.isSynchronous());
+        }
+    }
+}
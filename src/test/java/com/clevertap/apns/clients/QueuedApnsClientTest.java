@@ -0,0 +1,399 @@
+package com.clevertap.apns.clients;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import com.clevertap.apns.Notification;
+import com.clevertap.apns.NotificationResponse;
+import com.clevertap.apns.NotificationResponseListener;
+import com.clevertap.apns.exceptions.NotificationCoalescedException;
+import com.clevertap.apns.exceptions.NotificationExpiredException;
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class QueuedApnsClientTest {
+
+    @TempDir
+    File directory;
+
+    static class RecordingListener implements NotificationResponseListener {
+        final List<String> succeeded = new CopyOnWriteArrayList<>();
+        final List<NotificationResponse> failures = new CopyOnWriteArrayList<>();
+
+        @Override
+        public void onSuccess(Notification notification) {
+            succeeded.add(notification.getToken());
+        }
+
+        @Override
+        public void onFailure(Notification notification, NotificationResponse response) {
+            failures.add(response);
+        }
+    }
+
+    private static Notification notification(String token) {
+        return new Notification.Builder(token).alertBody("body").build();
+    }
+
+    private int spillFiles() {
+        int count = 0;
+        for (File owner : directory.listFiles()) {
+            count += owner.list((dir, name) -> name.endsWith(".spill")).length;
+        }
+        return count;
+    }
+
+    @Test
+    void limitsNotificationsInFlight() {
+        final StubApnsClient stub = new StubApnsClient();
+        final QueuedApnsClient client = new QueuedApnsClient(stub, 2);
+        final RecordingListener listener = new RecordingListener();
+
+        for (int i = 0; i < 5; i++) {
+            client.push(notification("token-" + i), listener);
+        }
+        assertEquals(2, stub.notifications.size());
+        assertEquals(2, client.getInFlightCount());
+        assertEquals(3, client.getQueuedCount());
+
+        stub.succeedNext();
+        assertEquals(3, stub.notifications.size());
+        assertEquals("token-2", stub.notifications.get(2).getToken());
+
+        stub.succeedAll();
+        assertEquals(5, listener.succeeded.size());
+        assertEquals(0, client.getInFlightCount());
+        assertEquals(0, client.getQueuedCount());
+    }
+
+    @Test
+    void spillsBeyondHighWaterMarkInOrder() throws Exception {
+        final StubApnsClient stub = new StubApnsClient();
+        final QueuedApnsClient client = new QueuedApnsClient(stub, 1, directory, 3);
+        final RecordingListener listener = new RecordingListener();
+
+        for (int i = 0; i < 10; i++) {
+            client.push(notification("token-" + i), listener);
+        }
+        assertEquals(1, client.getInFlightCount());
+        assertEquals(9, client.getQueuedCount());
+        assertEquals(6, client.getSpilledCount());
+
+        stub.succeedAll();
+        assertEquals(10, listener.succeeded.size());
+        for (int i = 0; i < 10; i++) {
+            assertEquals("token-" + i, listener.succeeded.get(i));
+        }
+        assertEquals(0, client.getQueuedCount());
+        assertEquals(0, spillFiles());
+    }
+
+    @Test
+    void clientsSharingASpillDirectoryKeepTheirOwnFiles() throws Exception {
+        final StubApnsClient firstStub = new StubApnsClient();
+        final StubApnsClient secondStub = new StubApnsClient();
+        final QueuedApnsClient first = new QueuedApnsClient(firstStub, 1, directory, 1);
+        final RecordingListener firstListener = new RecordingListener();
+        for (int i = 0; i < 5; i++) {
+            first.push(notification("first-" + i), firstListener);
+        }
+
+        // Neither deletes nor reuses the other's spill files
+        final QueuedApnsClient second = new QueuedApnsClient(secondStub, 1, directory, 1);
+        final RecordingListener secondListener = new RecordingListener();
+        for (int i = 0; i < 5; i++) {
+            second.push(notification("second-" + i), secondListener);
+        }
+        assertEquals(2, directory.listFiles().length);
+        assertEquals(3, first.getSpilledCount());
+        assertEquals(3, second.getSpilledCount());
+
+        firstStub.succeedAll();
+        secondStub.succeedAll();
+        for (int i = 0; i < 5; i++) {
+            assertEquals("first-" + i, firstListener.succeeded.get(i));
+            assertEquals("second-" + i, secondListener.succeeded.get(i));
+        }
+    }
+
+    @Test
+    void deletesSpillFilesLeftBehind() throws Exception {
+        final File abandoned = new File(directory, "queues-1");
+        assertTrue(abandoned.mkdir());
+        assertTrue(new File(abandoned, "lock").createNewFile());
+        assertTrue(new File(abandoned, "immediate-0-0000000000.spill").createNewFile());
+        final File unrelated = new File(directory, "unrelated.spill");
+        assertTrue(unrelated.createNewFile());
+
+        new QueuedApnsClient(new StubApnsClient(), 1, directory, 1);
+        assertFalse(abandoned.exists());
+        assertTrue(unrelated.exists());
+    }
+
+    @Test
+    void synchronousFailuresDoNotStallTheQueue() {
+        final QueuedApnsClient client = new QueuedApnsClient(new StubApnsClient() {
+            @Override
+            public void push(Notification notification, NotificationResponseListener listener) {
+                throw new IllegalStateException("refused");
+            }
+        }, 1);
+        final RecordingListener listener = new RecordingListener();
+
+        for (int i = 0; i < 1000; i++) {
+            client.push(notification("token-" + i), listener);
+        }
+        assertEquals(1000, listener.failures.size());
+        assertEquals(0, client.getInFlightCount());
+    }
+
+    @Test
+    void dropsNotificationsThatExpireWhileQueued() throws Exception {
+        final StubApnsClient stub = new StubApnsClient();
+        final long now = 1_600_000_000_000L;
+        final long[] millis = {now};
+        final QueuedApnsClient client = new QueuedApnsClient(stub, 1, directory, 1, () -> millis[0], System::nanoTime);
+        final RecordingListener listener = new RecordingListener();
+
+        client.push(notification("token-0"), listener);
+        client.push(new Notification.Builder("stale").expiration(now / 1000 - 1).build(), listener);
+        client.push(new Notification.Builder("immediate").expiration(0).build(), listener);
+        client.push(new Notification.Builder("overdue").deadline(now + 50).build(), listener);
+        client.push(new Notification.Builder("fresh").deadline(now + 60_000).build(), listener);
+        assertEquals(3, client.getSpilledCount());
+
+        millis[0] += 100;
+        stub.succeedAll();
+
+        assertEquals(3, listener.succeeded.size());
+        assertEquals("immediate", listener.succeeded.get(1));
+        assertEquals("fresh", listener.succeeded.get(2));
+        assertEquals(2, listener.failures.size());
+        for (NotificationResponse response : listener.failures) {
+            assertEquals(-1, response.getHttpStatusCode());
+            assertTrue(response.getCause() instanceof NotificationExpiredException);
+        }
+        assertEquals(2, client.getExpiredCount());
+        assertEquals(0, client.getInFlightCount());
+    }
+
+    @Test
+    void dropsNotificationsWithinTheExpirationMargin() {
+        final StubApnsClient stub = new StubApnsClient();
+        final QueuedApnsClient client = new QueuedApnsClient(stub, 1);
+        client.setExpirationMargin(60_000);
+        final RecordingListener listener = new RecordingListener();
+        final long expiration = System.currentTimeMillis() / 1000 + 30;
+
+        client.push(new Notification.Builder("soon").expiration(expiration).build(), listener);
+        client.push(new Notification.Builder("later").expiration(expiration + 3600).build(), listener);
+
+        assertEquals(1, listener.failures.size());
+        assertEquals(1, stub.notifications.size());
+        assertEquals("later", stub.notifications.get(0).getToken());
+    }
+
+    private static Notification notification(String token, Notification.Priority priority) {
+        return new Notification.Builder(token).alertBody("body").priority(priority).build();
+    }
+
+    @Test
+    void sendsImmediateNotificationsFirst() throws Exception {
+        final StubApnsClient stub = new StubApnsClient();
+        final QueuedApnsClient client = new QueuedApnsClient(stub, 1, directory, 2);
+        final RecordingListener listener = new RecordingListener();
+
+        for (int i = 0; i < 5; i++) {
+            client.push(notification("campaign-" + i, Notification.Priority.POWERCONSIDERATION), listener);
+        }
+        client.push(notification("otp", Notification.Priority.IMMEDIATE), listener);
+        client.push(notification("default", null), listener);
+        assertEquals(4, client.getQueuedCount(Notification.Priority.POWERCONSIDERATION));
+        assertEquals(2, client.getQueuedCount(Notification.Priority.IMMEDIATE));
+
+        stub.succeedAll();
+        assertEquals("campaign-0", listener.succeeded.get(0));
+        assertEquals("otp", listener.succeeded.get(1));
+        assertEquals("default", listener.succeeded.get(2));
+        for (int i = 1; i < 5; i++) {
+            assertEquals("campaign-" + i, listener.succeeded.get(2 + i));
+        }
+        assertEquals(0, spillFiles());
+    }
+
+    @Test
+    void doesNotStarvePowerConsiderationNotifications() {
+        final StubApnsClient stub = new StubApnsClient();
+        final QueuedApnsClient client = new QueuedApnsClient(stub, 1);
+        final RecordingListener listener = new RecordingListener();
+
+        client.push(notification("first", Notification.Priority.IMMEDIATE), listener);
+        client.push(notification("campaign", Notification.Priority.POWERCONSIDERATION), listener);
+        for (int i = 0; i < 2 * QueuedApnsClient.MAX_CONSECUTIVE_IMMEDIATE; i++) {
+            client.push(notification("otp-" + i, Notification.Priority.IMMEDIATE), listener);
+        }
+
+        stub.succeedAll();
+        assertEquals("campaign", listener.succeeded.get(QueuedApnsClient.MAX_CONSECUTIVE_IMMEDIATE));
+    }
+
+    @Test
+    void measuresQueueWaitPerPriority() {
+        final StubApnsClient stub = new StubApnsClient();
+        final long[] nanos = {0};
+        final QueuedApnsClient client = new QueuedApnsClient(stub, 1, () -> nanos[0]);
+        final RecordingListener listener = new RecordingListener();
+
+        client.push(notification("first", Notification.Priority.IMMEDIATE), listener);
+        client.push(notification("campaign", Notification.Priority.POWERCONSIDERATION), listener);
+        nanos[0] += TimeUnit.MILLISECONDS.toNanos(50);
+        stub.succeedAll();
+
+        final QueuedApnsClient.QueueWait immediate = client.getQueueWait(Notification.Priority.IMMEDIATE);
+        final QueuedApnsClient.QueueWait powerConsideration = client.getQueueWait(Notification.Priority.POWERCONSIDERATION);
+        assertEquals(1, immediate.getCount());
+        assertEquals(1, powerConsideration.getCount());
+        assertEquals(0, immediate.getMax(TimeUnit.MILLISECONDS));
+        assertEquals(50, powerConsideration.getMax(TimeUnit.MILLISECONDS));
+        assertEquals(powerConsideration.getMax(TimeUnit.NANOSECONDS), powerConsideration.getAverage(TimeUnit.NANOSECONDS));
+    }
+
+    @Test
+    void schedulesTenantsByWeight() throws Exception {
+        final StubApnsClient stub = new StubApnsClient();
+        final QueuedApnsClient client = new QueuedApnsClient(stub, 1, directory, 4);
+        client.setTenantKey(n -> n.getToken().substring(0, 1));
+        client.setTenantWeight("b", 2);
+        final RecordingListener listener = new RecordingListener();
+
+        client.push(notification("x"), listener);
+        for (int i = 0; i < 100; i++) {
+            client.push(notification("a" + i), listener);
+        }
+        for (int i = 0; i < 4; i++) {
+            client.push(notification("b" + i), listener);
+            client.push(notification("c" + i), listener);
+        }
+        assertTrue(client.getSpilledCount() > 0);
+        assertEquals(100, client.getQueuedCount("a"));
+
+        stub.succeedAll();
+        final List<String> order = listener.succeeded.subList(1, 13);
+        assertEquals(Arrays.asList("a0", "b0", "b1", "c0", "a1", "b2", "b3", "c1", "a2", "c2", "a3", "c3"), order);
+        assertEquals(109, listener.succeeded.size());
+        assertEquals(0, client.getQueuedCount());
+        assertEquals(0, spillFiles());
+    }
+
+    @Test
+    void capsTenantsInFlight() {
+        final StubApnsClient stub = new StubApnsClient();
+        final QueuedApnsClient client = new QueuedApnsClient(stub, 10);
+        client.setTenantMaxInFlight("campaign", 2);
+        final RecordingListener listener = new RecordingListener();
+
+        for (int i = 0; i < 5; i++) {
+            client.push(new Notification.Builder("c" + i).topic("campaign").build(), listener);
+        }
+        client.push(new Notification.Builder("t0").topic("transactional").build(), listener);
+
+        assertEquals(3, stub.notifications.size());
+        assertEquals("t0", stub.notifications.get(2).getToken());
+        assertEquals(2, client.getInFlightCount("campaign"));
+        assertEquals(3, client.getQueuedCount("campaign"));
+
+        stub.succeedNext();
+        assertEquals(4, stub.notifications.size());
+        assertEquals("c2", stub.notifications.get(3).getToken());
+
+        client.setTenantMaxInFlight("campaign", 5);
+        assertEquals(6, stub.notifications.size());
+
+        stub.succeedAll();
+        assertEquals(6, listener.succeeded.size());
+        assertEquals(0, client.getInFlightCount("campaign"));
+    }
+
+    @Test
+    void coalescesQueuedNotificationsByCollapseId() {
+        final StubApnsClient stub = new StubApnsClient();
+        final QueuedApnsClient client = new QueuedApnsClient(stub, 1);
+        client.setCoalescing(true);
+        final RecordingListener listener = new RecordingListener();
+
+        client.push(new Notification.Builder("a").collapseId("score").alertBody("0-0").build(), listener);
+        client.push(new Notification.Builder("a").collapseId("score").alertBody("1-0").build(), listener);
+        client.push(new Notification.Builder("b").collapseId("score").alertBody("1-0").build(), listener);
+        client.push(new Notification.Builder("a").collapseId("score").alertBody("2-0").build(), listener);
+        client.push(new Notification.Builder("a").alertBody("no collapse ID").build(), listener);
+        client.push(new Notification.Builder("a").collapseId("score").alertBody("2-1").build(), listener);
+
+        assertEquals(2, client.getCoalescedCount());
+        assertEquals(2, listener.failures.size());
+        assertTrue(listener.failures.get(0).getCause() instanceof NotificationCoalescedException);
+        assertEquals(3, client.getQueuedCount());
+
+        stub.succeedAll();
+        assertEquals(4, stub.notifications.size());
+        assertTrue(stub.notifications.get(0).getPayload().contains("0-0"));
+        assertTrue(stub.notifications.get(1).getPayload().contains("2-1"));
+        assertEquals("b", stub.notifications.get(2).getToken());
+        assertTrue(stub.notifications.get(3).getPayload().contains("no collapse ID"));
+    }
+
+    @Test
+    void coalescingMovesNotificationsToTheirOwnPriority() {
+        final StubApnsClient stub = new StubApnsClient();
+        final QueuedApnsClient client = new QueuedApnsClient(stub, 1);
+        client.setCoalescing(true);
+        final RecordingListener listener = new RecordingListener();
+
+        client.push(new Notification.Builder("first").build(), listener);
+        for (int i = 0; i < 5; i++) {
+            client.push(new Notification.Builder("campaign-" + i)
+                    .priority(Notification.Priority.POWERCONSIDERATION).build(), listener);
+        }
+        client.push(new Notification.Builder("a").collapseId("score").alertBody("0-0")
+                .priority(Notification.Priority.POWERCONSIDERATION).build(), listener);
+        client.push(new Notification.Builder("a").collapseId("score").alertBody("1-0")
+                .priority(Notification.Priority.IMMEDIATE).build(), listener);
+
+        assertEquals(1, client.getCoalescedCount());
+        assertEquals(5, client.getQueuedCount(Notification.Priority.POWERCONSIDERATION));
+        assertEquals(1, client.getQueuedCount(Notification.Priority.IMMEDIATE));
+
+        // It can be replaced again in its new queue
+        client.push(new Notification.Builder("a").collapseId("score").alertBody("2-0").build(), listener);
+        assertEquals(2, client.getCoalescedCount());
+        assertEquals(1, client.getQueuedCount(Notification.Priority.IMMEDIATE));
+
+        // The update jumps ahead of the campaign, rather than waiting in its place
+        stub.succeedNext();
+        assertTrue(stub.notifications.get(1).getPayload().contains("2-0"));
+        stub.succeedAll();
+        assertEquals(7, stub.notifications.size());
+    }
+
+    @Test
+    void coalescingMovesNotificationsToTheirOwnTenant() {
+        final StubApnsClient stub = new StubApnsClient();
+        final QueuedApnsClient client = new QueuedApnsClient(stub, 1);
+        client.setCoalescing(true);
+        client.setTenantKey(n -> n.getPayload().contains("vip") ? "vip" : "other");
+        final RecordingListener listener = new RecordingListener();
+
+        client.push(new Notification.Builder("first").build(), listener);
+        client.push(new Notification.Builder("a").collapseId("c").alertBody("old").build(), listener);
+        client.push(new Notification.Builder("a").collapseId("c").alertBody("vip").build(), listener);
+
+        assertEquals(0, client.getQueuedCount("other"));
+        assertEquals(1, client.getQueuedCount("vip"));
+        stub.succeedAll();
+        assertEquals(2, stub.notifications.size());
+        assertTrue(stub.notifications.get(1).getPayload().contains("vip"));
+    }
+}
@@ -0,0 +1,68 @@
+package com.clevertap.apns.clients;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import com.clevertap.apns.ApnsClient;
+import com.clevertap.apns.Notification;
+import com.clevertap.apns.NotificationResponse;
+import com.clevertap.apns.NotificationResponseListener;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import okhttp3.OkHttpClient;
+
+/**
+ * An asynchronous client which holds on to notifications until told to answer them.
+ */
+class StubApnsClient implements ApnsClient {
+    final List<Notification> notifications = new CopyOnWriteArrayList<>();
+    final List<NotificationResponseListener> listeners = new CopyOnWriteArrayList<>();
+    private int answered;
+
+    @Override
+    public boolean isSynchronous() {
+        return false;
+    }
+
+    @Override
+    public void push(Notification notification, NotificationResponseListener listener) {
+        notifications.add(notification);
+        listeners.add(listener);
+    }
+
+    @Override
+    public NotificationResponse push(Notification notification) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public OkHttpClient getHttpClient() {
+        return null;
+    }
+
+    /**
+     * Answers the next unanswered notification.
+     */
+    void succeedNext() {
+        final int index = answered++;
+        listeners.get(index).onSuccess(notifications.get(index));
+    }
+
+    void failNext(NotificationResponse response) {
+        final int index = answered++;
+        listeners.get(index).onFailure(notifications.get(index), response);
+    }
+
+    void succeedAll() {
+        while (answered < notifications.size()) {
+            succeedNext();
+        }
+    }
+
+    void awaitPushes(int count) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (notifications.size() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(count, notifications.size());
+    }
+}
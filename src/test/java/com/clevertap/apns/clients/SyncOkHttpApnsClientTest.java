@@ -1,6 +1,10 @@
 package com.clevertap.apns.clients;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import com.clevertap.apns.ApnsClient;
 import com.clevertap.apns.LocalHttpServer;
@@ -22,9 +26,12 @@ import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
 import okhttp3.OkHttpClient;
 import okhttp3.OkHttpClient.Builder;
+import okhttp3.Request;
+import okhttp3.internal.http2.ErrorCode;
 import okhttp3.mockwebserver.MockResponse;
 import okhttp3.mockwebserver.MockWebServer;
 import okhttp3.mockwebserver.RecordedRequest;
+import okhttp3.mockwebserver.SocketPolicy;
 import okhttp3.tls.HandshakeCertificates;
 import okhttp3.tls.HeldCertificate;
 import org.junit.jupiter.api.BeforeAll;
@@ -133,19 +140,22 @@ public class SyncOkHttpApnsClientTest {
 
             ApnsClient client = buildClientWithCert(true, url);
 
-            NotificationResponse response = client.push(
-                    new Notification.Builder(DEVICE_TOKEN)
-                            .alertBody("Notification Body")
-                            .alertTitle("Alert Title")
-                            .badge(10)
-                            .sound("sound")
-                            .build()
-            );
+            Notification notification = new Notification.Builder(DEVICE_TOKEN)
+                    .alertBody("Notification Body")
+                    .alertTitle("Alert Title")
+                    .badge(10)
+                    .sound("sound")
+                    .build();
+            NotificationResponse response = client.push(notification);
             assertEquals(200, response.getHttpStatusCode());
 
             RecordedRequest request = server.takeRequest();
             assertEquals("/3/device/" + DEVICE_TOKEN, request.getPath());
             assertEquals(DEFAULT_TOPIC, request.getHeader("apns-topic"));
+            assertEquals("application/json", request.getHeader("content-type"));
+            assertEquals(String.valueOf(notification.getPayload().length()),
+                    request.getHeader("content-length"));
+            assertEquals(notification.getPayload(), request.getBody().readUtf8());
 
             assert request.getHandshake() != null;
             X509Certificate clientCert = (X509Certificate) request.getHandshake().peerCertificates()
@@ -155,6 +165,66 @@ public class SyncOkHttpApnsClientTest {
         }
     }
 
+    /**
+     * Starts an HTTP/2 server, and returns a client (with OkHttp's own retries disabled)
+     * pointing to it.
+     */
+    private ApnsClient buildClientForServer(MockWebServer server) throws Exception {
+        server.useHttps(serverCertificateChain.sslSocketFactory(), false);
+        server.requestClientAuth();
+
+        String url = server.url("").toString();
+        url = url.substring(0, url.length() - 1);
+
+        return new ApnsClientBuilder()
+                .withDefaultTopic(DEFAULT_TOPIC)
+                .withCertificate(getClientCertPKCS12())
+                .withPassword(CERT_PASSWD)
+                .inSynchronousMode()
+                .withProductionGateway()
+                .withOkHttpClientBuilder(new OkHttpClient.Builder()
+                        .retryOnConnectionFailure(false)
+                        .sslSocketFactory(clientCertificateChain.sslSocketFactory(),
+                                clientCertificateChain.trustManager()))
+                .withGatewayUrl(url)
+                .build();
+    }
+
+    @Test
+    void refusedStreamIsReplayed() throws Exception {
+        try (MockWebServer server = new MockWebServer()) {
+            server.enqueue(new MockResponse()
+                    .setSocketPolicy(SocketPolicy.RESET_STREAM_AT_START)
+                    .setHttp2ErrorCode(ErrorCode.REFUSED_STREAM.getHttpCode()));
+            server.enqueue(new MockResponse().setResponseCode(200));
+
+            ApnsClient client = buildClientForServer(server);
+            NotificationResponse response = client.push(
+                    new Notification.Builder(DEVICE_TOKEN).alertBody("body").build());
+
+            assertSame(NotificationResponse.SUCCESS, response);
+            assertEquals(2, server.getRequestCount());
+        }
+    }
+
+    @Test
+    void processedStreamIsNotReplayed() throws Exception {
+        try (MockWebServer server = new MockWebServer()) {
+            server.enqueue(new MockResponse()
+                    .setSocketPolicy(SocketPolicy.RESET_STREAM_AT_START)
+                    .setHttp2ErrorCode(ErrorCode.INTERNAL_ERROR.getHttpCode()));
+            server.enqueue(new MockResponse().setResponseCode(200));
+
+            ApnsClient client = buildClientForServer(server);
+            NotificationResponse response = client.push(
+                    new Notification.Builder(DEVICE_TOKEN).alertBody("body").build());
+
+            assertEquals(-1, response.getHttpStatusCode());
+            assertNotNull(response.getCause());
+            assertEquals(1, server.getRequestCount());
+        }
+    }
+
     //@Test
     void pushTestWithCertificateWithLocalHttpServer() throws Exception {
         LocalHttpServer localHttpServer = new LocalHttpServer();
@@ -206,4 +276,26 @@ public class SyncOkHttpApnsClientTest {
                 "teamID", "keyID", true, "defaultTopic", new Builder(), 443, null);
         assertEquals(Constants.ENDPOINT_PRODUCTION + ":443", client.getGateway());
     }
-}
\ No newline at end of file
+
+    @Test
+    void buildsRequestHeaders() {
+        final SyncOkHttpApnsClient client = new SyncOkHttpApnsClient(TestClients.AUTH_KEY,
+                TestClients.TEAM_ID, TestClients.KEY_ID, true, "defaultTopic", new Builder(), 443,
+                "https://gateway");
+        final Notification notification = new Notification.Builder("token")
+                .alertBody("body")
+                .collapseId("score")
+                .priority(Notification.Priority.POWERCONSIDERATION)
+                .build();
+
+        final Request request = client.buildRequest(notification);
+        assertEquals("https://gateway" + Constants.DEVICE_PATH + "token", request.url().toString());
+        assertSame(notification.getRequestBody(), request.body());
+        assertEquals(4, request.headers().size());
+        assertEquals("defaultTopic", request.header(Constants.HEADER_TOPIC));
+        assertEquals("score", request.header(Constants.HEADER_COLLAPSE_ID));
+        assertEquals("5", request.header(Constants.HEADER_PRIORITY));
+        assertTrue(request.header(Constants.HEADER_AUTHORIZATION).startsWith("bearer "));
+        assertNull(request.header(Constants.HEADER_ID));
+    }
+}
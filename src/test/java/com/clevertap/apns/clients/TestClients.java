@@ -0,0 +1,47 @@
+package com.clevertap.apns.clients;
+
+import java.security.KeyPairGenerator;
+import java.security.spec.ECGenParameterSpec;
+import java.util.Base64;
+import okhttp3.mockwebserver.MockWebServer;
+
+/**
+ * Builds clients that use token authentication against a plain-text {@link MockWebServer}.
+ */
+final class TestClients {
+
+    static final String TEAM_ID = "teamID";
+    static final String KEY_ID = "keyID";
+    static final String AUTH_KEY = generateAuthKey();
+
+    private TestClients() {
+    }
+
+    private static String generateAuthKey() {
+        try {
+            KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+            generator.initialize(new ECGenParameterSpec("secp256r1"));
+            return Base64.getEncoder().encodeToString(generator.generateKeyPair().getPrivate().getEncoded());
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static String gatewayUrl(MockWebServer server) {
+        String url = server.url("").toString();
+        return url.substring(0, url.length() - 1);
+    }
+
+    static ApnsClientBuilder builder(MockWebServer server) {
+        return new ApnsClientBuilder()
+                .withApnsAuthKey(AUTH_KEY)
+                .withTeamID(TEAM_ID)
+                .withKeyID(KEY_ID)
+                .withDefaultTopic("com.clevertap.testTopic")
+                .withGatewayUrl(gatewayUrl(server));
+    }
+
+    static AsyncOkHttpApnsClient asyncClient(MockWebServer server) throws Exception {
+        return (AsyncOkHttpApnsClient) builder(server).inAsynchronousMode().build();
+    }
+}
@@ -0,0 +1,88 @@
+package com.clevertap.apns.internal;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPairGenerator;
+import java.security.spec.ECGenParameterSpec;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+class ProviderTokenCacheTest {
+
+    private static final String SECRET = generateSecret();
+    private static final long MINUTE = TimeUnit.MINUTES.toMillis(1);
+
+    private final List<Runnable> refreshes = new ArrayList<>();
+    private long now = System.currentTimeMillis();
+    private final ProviderTokenCache cache = new ProviderTokenCache(refreshes::add, () -> now);
+
+    private static String generateSecret() {
+        try {
+            KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+            generator.initialize(new ECGenParameterSpec("secp256r1"));
+            return Base64.getEncoder().encodeToString(generator.generateKeyPair().getPrivate().getEncoded());
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static long issuedAt(String authorization) {
+        final String payload = authorization.split("\\.")[1];
+        final String json = new String(Base64.getDecoder().decode(payload), StandardCharsets.UTF_8);
+        return Long.parseLong(json.substring(json.indexOf("\"iat\":") + 6, json.length() - 1));
+    }
+
+    @Test
+    void sharesTokensPerKey() {
+        final String authorization = cache.getAuthorization("team", "key", SECRET);
+        assertTrue(authorization.startsWith("bearer "));
+        assertSame(authorization, cache.getAuthorization("team", "key", SECRET));
+        assertNotSame(authorization, cache.getAuthorization("team", "other", SECRET));
+        assertNull(cache.getAuthorization("team", "broken", "not a key"));
+    }
+
+    @Test
+    void refreshesInTheBackground() {
+        final String first = cache.getAuthorization("team", "key", SECRET);
+
+        now += 46 * MINUTE;
+        assertSame(first, cache.getAuthorization("team", "key", SECRET));
+        assertSame(first, cache.getAuthorization("team", "key", SECRET));
+        assertEquals(1, refreshes.size(), "Only one refresh runs at a time");
+
+        refreshes.remove(0).run();
+        final String second = cache.getAuthorization("team", "key", SECRET);
+        assertNotEquals(first, second);
+        // JWTs carry their issue time in seconds, from the cache's clock
+        assertEquals(now / 1000, issuedAt(second));
+    }
+
+    @Test
+    void signsInTheForegroundOnceExpired() {
+        final String first = cache.getAuthorization("team", "key", SECRET);
+
+        now += 56 * MINUTE;
+        assertNotEquals(first, cache.getAuthorization("team", "key", SECRET));
+        assertTrue(refreshes.isEmpty());
+    }
+
+    @Test
+    void respectsTheMinimumAgeWhenExpired() {
+        final String first = cache.getAuthorization("team", "key", SECRET);
+        cache.expire("team", "key", first);
+        assertSame(first, cache.getAuthorization("team", "key", SECRET));
+
+        now += 21 * MINUTE;
+        final String second = cache.getAuthorization("team", "key", SECRET);
+        assertNotEquals(first, second);
+
+        // Rejections of older tokens don't invalidate the new one
+        cache.expire("team", "key", first);
+        now += 21 * MINUTE;
+        assertSame(second, cache.getAuthorization("team", "key", SECRET));
+    }
+}
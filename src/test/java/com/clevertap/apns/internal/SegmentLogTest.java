@@ -0,0 +1,107 @@
+package com.clevertap.apns.internal;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class SegmentLogTest {
+
+    @TempDir
+    File directory;
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private File[] segments() {
+        return directory.listFiles((dir, name) -> name.endsWith(".log"));
+    }
+
+    @Test
+    void recoversPendingRecords() throws Exception {
+        SegmentLog log = new SegmentLog(directory, 1024);
+        final long first = log.append(bytes("first"));
+        log.append(bytes("second"));
+        log.append(bytes("third"));
+        log.acknowledge(first);
+        assertEquals(2, log.pending());
+
+        // Closing doesn't acknowledge anything, so this is what a restart after a crash sees
+        log.close();
+        log = new SegmentLog(directory, 1024);
+        final List<SegmentLog.Record> records = log.takeRecovered();
+        assertEquals(2, records.size());
+        assertEquals("second", new String(records.get(0).getData(), StandardCharsets.UTF_8));
+        assertEquals("third", new String(records.get(1).getData(), StandardCharsets.UTF_8));
+        assertTrue(log.takeRecovered().isEmpty());
+
+        // New records go to a fresh segment
+        log.append(bytes("fourth"));
+        for (SegmentLog.Record record : records) {
+            log.acknowledge(record.getHandle());
+        }
+        assertEquals(1, log.pending());
+        assertEquals(1, segments().length);
+    }
+
+    @Test
+    void deletesAcknowledgedSegments() throws Exception {
+        final SegmentLog log = new SegmentLog(directory, 64);
+        final long[] handles = new long[10];
+        for (int i = 0; i < handles.length; i++) {
+            handles[i] = log.append(bytes("record-" + i));
+        }
+        assertTrue(segments().length > 1);
+
+        for (long handle : handles) {
+            log.acknowledge(handle);
+        }
+
+        // Only the active segment remains
+        assertEquals(1, segments().length);
+        assertEquals(0, log.pending());
+    }
+
+    @Test
+    void stopsAtTornRecord() throws Exception {
+        final SegmentLog log = new SegmentLog(directory, 1024);
+        log.append(bytes("intact"));
+        log.append(bytes("torn"));
+        log.close();
+
+        try (RandomAccessFile file = new RandomAccessFile(segments()[0], "rw")) {
+            // Corrupt the data of the second record
+            file.seek(9 + 6 + 9);
+            file.write('x');
+        }
+
+        final List<SegmentLog.Record> records = new SegmentLog(directory, 1024).takeRecovered();
+        assertEquals(1, records.size());
+        assertEquals("intact", new String(records.get(0).getData(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void rejectsOversizedRecords() throws Exception {
+        final SegmentLog log = new SegmentLog(directory, 32);
+        assertThrows(IllegalArgumentException.class, () -> log.append(new byte[32]));
+        assertThrows(IllegalArgumentException.class, () -> log.append(new byte[0]));
+    }
+
+    @Test
+    void locksItsDirectory() throws Exception {
+        final SegmentLog log = new SegmentLog(directory, 1024);
+        log.append(bytes("pending"));
+        assertThrows(IOException.class, () -> new SegmentLog(directory, 1024));
+
+        log.close();
+        try (SegmentLog reopened = new SegmentLog(directory, 1024)) {
+            assertEquals(1, reopened.takeRecovered().size());
+        }
+    }
+}
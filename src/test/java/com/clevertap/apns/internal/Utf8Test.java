@@ -0,0 +1,18 @@
+package com.clevertap.apns.internal;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.charset.StandardCharsets;
+import org.junit.jupiter.api.Test;
+
+class Utf8Test {
+
+    @Test
+    void matchesEncodedLength() {
+        final String[] samples = {"", "ascii", "Café", "世界", "emoji 😀!", "lone \uD83D high",
+                "lone \uDE00 low", "ends high \uD83D", "߿ࠀ￿"};
+        for (String sample : samples) {
+            assertEquals(sample.getBytes(StandardCharsets.UTF_8).length, Utf8.encodedLength(sample), sample);
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package com.clevertap.apns.internal;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import org.junit.jupiter.api.Test;
+
+class VirtualThreadsTest {
+
+    private static int javaVersion() {
+        final String version = System.getProperty("java.specification.version");
+        return version.startsWith("1.") ? 8 : Integer.parseInt(version);
+    }
+
+    @Test
+    void availability() throws Exception {
+        if (javaVersion() < 21) {
+            assertFalse(VirtualThreads.isAvailable());
+            assertThrows(UnsupportedOperationException.class, VirtualThreads::newExecutor);
+            return;
+        }
+
+        assertTrue(VirtualThreads.isAvailable());
+        final ExecutorService executor = VirtualThreads.newExecutor();
+        try {
+            final Future<String> name = executor.submit(() -> Thread.currentThread().toString());
+            assertTrue(name.get().startsWith("VirtualThread"));
+        } finally {
+            executor.shutdown();
+        }
+    }
+}